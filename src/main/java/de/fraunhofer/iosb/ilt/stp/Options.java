@@ -54,6 +54,7 @@ public class Options {
     private final OptionToggle noAct;
     private final OptionToggle online;
     private final OptionToggle daemon;
+    private final OptionToggle retryFailed;
     private final OptionSingle<String> fileName;
 
     public Options() {
@@ -66,6 +67,9 @@ public class Options {
         daemon = addOption(
                 new OptionToggle("-daemon", "-d")
                         .setDescription("Run in daemon mode, not listening for 'Enter' to exit."));
+        retryFailed = addOption(
+                new OptionToggle("-retryfailed", "-r")
+                        .setDescription("Retry the calculations that finally failed in earlier runs, as stored in the dead-letter file."));
         fileName = addOption(
                 new OptionSingle<String>("-config", "-c")
                         .setParam(new ParameterString("file path", ""))
@@ -130,6 +134,10 @@ public class Options {
         return daemon;
     }
 
+    public OptionToggle getRetryFailed() {
+        return retryFailed;
+    }
+
     public OptionSingle<String> getFileName() {
         return fileName;
     }
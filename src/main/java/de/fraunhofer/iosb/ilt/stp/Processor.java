@@ -33,6 +33,13 @@ public interface Processor extends Configurable<Void, Void> {
      */
     public void setNoAct(boolean noAct);
 
+    /**
+     * Set whether work that finally failed in an earlier run should be retried.
+     *
+     * @param retryFailed true if failed work should be retried.
+     */
+    public void setRetryFailed(boolean retryFailed);
+
     /**
      * Run the process.
      */
@@ -17,6 +17,9 @@
  */
 package de.fraunhofer.iosb.ilt.stp;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,14 +36,13 @@ public class ProcessorHelper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorHelper.class);
     private static final long SHUTDOWN_WAIT_STEP_IN_MILLIS = 100;
+    private static final String VIRTUAL_EXECUTOR_METHOD = "newVirtualThreadPerTaskExecutor";
 
     private ProcessorHelper() {
     }
 
     public static <T> ExecutorService createProcessors(int threadCount, BlockingQueue<T> queue, Consumer<T> consumer, String name) {
-        ThreadGroup threadGroup = new ThreadGroup(name + "-ThreadGroup");
-        ExecutorService result = Executors.newFixedThreadPool(threadCount,
-                (Runnable r) -> new Thread(threadGroup, r, name + "-Thread"));
+        ExecutorService result = createExecutor(threadCount, name, false);
         for (int i = 0; i < threadCount; i++) {
 
             result.submit(new Processor(queue, consumer, name));
@@ -48,6 +50,99 @@ public class ProcessorHelper {
         return result;
     }
 
+    /**
+     * Creates processors that take items from the queue in batches. Each
+     * processor waits for one item, and then drains up to maxBatch - 1 more
+     * items that are already waiting.
+     *
+     * @param <T> The type of the items on the queue.
+     * @param threadCount The number of processors to create.
+     * @param queue The queue to take the items from.
+     * @param consumer The consumer to pass the batches to.
+     * @param maxBatch The maximum number of items in a batch.
+     * @param name The name to use for the threads.
+     * @return The ExecutorService running the processors.
+     */
+    public static <T> ExecutorService createBatchProcessors(int threadCount, BlockingQueue<T> queue, Consumer<List<T>> consumer, int maxBatch, String name) {
+        return createBatchProcessors(threadCount, queue, consumer, maxBatch, name, false);
+    }
+
+    /**
+     * Creates processors that take items from the queue in batches.
+     *
+     * @param <T> The type of the items on the queue.
+     * @param threadCount The number of processors to create.
+     * @param queue The queue to take the items from.
+     * @param consumer The consumer to pass the batches to.
+     * @param maxBatch The maximum number of items in a batch.
+     * @param name The name to use for the threads.
+     * @param virtual Run the processors on virtual threads, if the runtime
+     * supports them.
+     * @return The ExecutorService running the processors.
+     * @see #createBatchProcessors(int, BlockingQueue, Consumer, int, String)
+     */
+    public static <T> ExecutorService createBatchProcessors(int threadCount, BlockingQueue<T> queue, Consumer<List<T>> consumer, int maxBatch, String name, boolean virtual) {
+        ExecutorService result = createExecutor(threadCount, name, virtual);
+        for (int i = 0; i < threadCount; i++) {
+            result.submit(new BatchProcessor<>(queue, consumer, maxBatch, name));
+        }
+        return result;
+    }
+
+    /**
+     * Creates an executor. With virtual set, and on a runtime that supports
+     * virtual threads (Java 21+), each task gets its own virtual thread, and
+     * threadCount is ignored. Otherwise a fixed pool of threadCount platform
+     * threads is created.
+     *
+     * @param threadCount The number of platform threads.
+     * @param name The name to use for the platform threads.
+     * @param virtual Use virtual threads, if the runtime supports them.
+     * @return The new executor.
+     */
+    public static ExecutorService createExecutor(int threadCount, String name, boolean virtual) {
+        if (virtual) {
+            ExecutorService result = newVirtualThreadExecutor();
+            if (result != null) {
+                return result;
+            }
+            LOGGER.warn("Virtual threads are not supported by this runtime, using {} platform threads for {}.", threadCount, name);
+        }
+        ThreadGroup threadGroup = new ThreadGroup(name + "-ThreadGroup");
+        return Executors.newFixedThreadPool(threadCount,
+                (Runnable r) -> new Thread(threadGroup, r, name + "-Thread"));
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        try {
+            Executors.class.getMethod(VIRTUAL_EXECUTOR_METHOD);
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task. Uses
+     * reflection, since the code is compiled for Java versions without
+     * virtual threads.
+     *
+     * @return The new executor, or null if the runtime does not support
+     * virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod(VIRTUAL_EXECUTOR_METHOD);
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.trace("No virtual threads.", ex);
+            return null;
+        }
+    }
+
     public static void shutdownProcessors(ExecutorService executorService, BlockingQueue<?> queue, long timeout, TimeUnit timeUnit) {
         if (executorService != null) {
             executorService.shutdown();
@@ -117,4 +212,50 @@ public class ProcessorHelper {
             LOGGER.debug("exiting {}-Thread", name);
         }
     }
+
+    static class BatchProcessor<T> implements Runnable {
+
+        final Logger LOGGER = LoggerFactory.getLogger(BatchProcessor.class);
+        final BlockingQueue<T> queue;
+        final Consumer<List<T>> consumer;
+        final int maxBatch;
+        final String name;
+
+        private BatchProcessor(BlockingQueue<T> queue, Consumer<List<T>> consumer, int maxBatch, String name) {
+            if (queue == null) {
+                throw new IllegalArgumentException("queue must be non-null");
+            }
+            if (consumer == null) {
+                throw new IllegalArgumentException("handler must be non-null");
+            }
+            if (maxBatch < 1) {
+                throw new IllegalArgumentException("maxBatch must be at least 1");
+            }
+            this.queue = queue;
+            this.consumer = consumer;
+            this.maxBatch = maxBatch;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.debug("starting {}-Thread", name);
+            List<T> batch = new ArrayList<>(maxBatch);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, maxBatch - 1);
+                    consumer.accept(batch);
+                } catch (InterruptedException ex) {
+                    LOGGER.trace(name + " interrupted", ex);
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception ex) {
+                    LOGGER.warn("Exception while executing " + name, ex);
+                }
+                batch = new ArrayList<>(maxBatch);
+            }
+            LOGGER.debug("exiting {}-Thread", name);
+        }
+    }
 }
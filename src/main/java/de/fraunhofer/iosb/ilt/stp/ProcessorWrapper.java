@@ -56,6 +56,7 @@ public class ProcessorWrapper implements Configurable<Void, Void> {
     private boolean noAct = false;
     private boolean online = false;
     private boolean daemon = false;
+    private boolean retryFailed = false;
     private Processor processor;
     private Thread shutdownHook;
 
@@ -113,6 +114,7 @@ public class ProcessorWrapper implements Configurable<Void, Void> {
         Calendar start = Calendar.getInstance();
 
         processor.setNoAct(noAct);
+        processor.setRetryFailed(retryFailed);
         if (online || daemon) {
             LOGGER.info("Processing in on-line mode...");
             addShutdownHook();
@@ -131,6 +133,7 @@ public class ProcessorWrapper implements Configurable<Void, Void> {
         this.noAct = options.getNoAct().isSet();
         this.online = options.getOnline().isSet();
         this.daemon = options.getDaemon().isSet();
+        this.retryFailed = options.getRetryFailed().isSet();
         String fileName = options.getFileName().getValue();
         File configFile = new File(fileName);
         try {
@@ -17,10 +17,20 @@
  */
 package de.fraunhofer.iosb.ilt.stp.aggregation;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.IdString;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
 import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -36,6 +46,13 @@ public class Utils {
     public static final String LB = Pattern.quote("[");
     public static final String RB = Pattern.quote("]");
     public static final Pattern POSTFIX_PATTERN = Pattern.compile("(.+)" + LB + "([0-9]+ [a-zA-Z]+)" + RB);
+    private static final String KEY_PHENOMENON_TIME = "phenomenonTime";
+    private static final String KEY_DATASTREAM = "Datastream";
+    private static final String KEY_MULTI_DATASTREAM = "MultiDatastream";
+    private static final String KEY_IOT_ID = "@iot.id";
+    private static final String KEY_VALUE = "value";
+    private static final String KEY_NEXT_LINK = "@iot.nextLink";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     private Utils() {
         // Not to be instantiated.
@@ -64,4 +81,147 @@ public class Utils {
         }
         return phenTime.getAsDateTime().toInstant();
     }
+
+    /**
+     * The parts of an Observation message that are needed to create
+     * calculation orders.
+     */
+    public static class MessageInfo {
+
+        /**
+         * The id of the Observation, or null if the message does not contain
+         * it.
+         */
+        public Id<?> id;
+        /**
+         * The phenomenonTime of the Observation, or null if it has none.
+         */
+        public TimeObject phenomenonTime;
+        /**
+         * The source of the Observation, as "Datastreams(id)" or
+         * "MultiDatastreams(id)", or null if the message does not contain an
+         * expanded Datastream or MultiDatastream.
+         */
+        public String sourceKey;
+    }
+
+    /**
+     * Extracts the phenomenonTime, and the id of an expanded Datastream or
+     * MultiDatastream, from a JSON encoded Observation, without parsing the
+     * rest of the Observation. Other fields, including nested objects and
+     * arrays, are skipped at the token level.
+     *
+     * @param json The UTF-8 encoded JSON of the Observation.
+     * @return The extracted information.
+     * @throws IOException If the JSON is invalid, or the phenomenonTime is not
+     * a valid time.
+     */
+    public static MessageInfo parseMessage(byte[] json) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Message is not a JSON object.");
+            }
+            return parseObservation(parser);
+        }
+    }
+
+    /**
+     * Extracts the information of each Observation in a JSON encoded
+     * Observation collection, as returned by the server, in the same way as
+     * {@link #parseMessage(byte[])}.
+     *
+     * @param json The UTF-8 encoded JSON of the collection.
+     * @param target The list to add the extracted information to.
+     * @return The @iot.nextLink of the collection, or null if it has none.
+     * @throws IOException If the JSON is invalid.
+     */
+    public static String parseObservationList(InputStream json, List<MessageInfo> target) throws IOException {
+        String nextLink = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Response is not a JSON object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (KEY_VALUE.equals(name) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        target.add(parseObservation(parser));
+                    }
+                } else if (KEY_NEXT_LINK.equals(name) && value == JsonToken.VALUE_STRING) {
+                    nextLink = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return nextLink;
+    }
+
+    /**
+     * Parses the Observation object the parser is at.
+     */
+    private static MessageInfo parseObservation(JsonParser parser) throws IOException {
+        MessageInfo info = new MessageInfo();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (KEY_PHENOMENON_TIME.equals(name)) {
+                info.phenomenonTime = parsePhenomenonTime(parser, value);
+            } else if (KEY_IOT_ID.equals(name)) {
+                info.id = toId(parser, value);
+            } else if (value == JsonToken.START_OBJECT && (KEY_DATASTREAM.equals(name) || KEY_MULTI_DATASTREAM.equals(name))) {
+                Id<?> id = parseId(parser);
+                if (id != null) {
+                    info.sourceKey = name + "s(" + id.getUrl() + ")";
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return info;
+    }
+
+    private static TimeObject parsePhenomenonTime(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value != JsonToken.VALUE_STRING) {
+            throw new IOException("phenomenonTime is not a string.");
+        }
+        try {
+            return TimeObject.parse(parser.getText());
+        } catch (IllegalArgumentException | DateTimeException ex) {
+            throw new IOException("Invalid phenomenonTime: " + parser.getText(), ex);
+        }
+    }
+
+    /**
+     * Finds the @iot.id in the object the parser is at, and skips the rest of
+     * the object.
+     */
+    private static Id<?> parseId(JsonParser parser) throws IOException {
+        Id<?> id = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (KEY_IOT_ID.equals(name)) {
+                id = toId(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    private static Id<?> toId(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return new IdLong(parser.getLongValue());
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            return new IdString(parser.getText());
+        }
+        parser.skipChildren();
+        return null;
+    }
 }
@@ -18,7 +18,6 @@
 package de.fraunhofer.iosb.ilt.stp.processors;
 
 import com.google.gson.JsonElement;
-import com.hivemq.client.mqtt.mqtt3.message.publish.Mqtt3Publish;
 import de.fraunhofer.iosb.ilt.configurable.AbstractConfigurable;
 import de.fraunhofer.iosb.ilt.configurable.ConfigEditor;
 import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
@@ -30,7 +29,6 @@ import de.fraunhofer.iosb.ilt.configurable.editor.EditorLong;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorString;
 import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.sta.StatusCodeException;
-import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
 import de.fraunhofer.iosb.ilt.sta.model.EntityType;
 import de.fraunhofer.iosb.ilt.sta.model.Id;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
@@ -40,13 +38,21 @@ import de.fraunhofer.iosb.ilt.stp.ProcessException;
 import de.fraunhofer.iosb.ilt.stp.Processor;
 import de.fraunhofer.iosb.ilt.stp.ProcessorHelper;
 import de.fraunhofer.iosb.ilt.stp.aggregation.Utils;
+import de.fraunhofer.iosb.ilt.stp.processors.aggregation.AdaptiveDelay;
 import de.fraunhofer.iosb.ilt.stp.processors.aggregation.AggregateCombo;
 import de.fraunhofer.iosb.ilt.stp.processors.aggregation.AggregationBase;
 import de.fraunhofer.iosb.ilt.stp.processors.aggregation.AggregationData;
 import de.fraunhofer.iosb.ilt.stp.processors.aggregation.Aggregator;
+import de.fraunhofer.iosb.ilt.stp.processors.aggregation.DeadLetterFile;
+import de.fraunhofer.iosb.ilt.stp.processors.aggregation.ObservationPoller;
+import de.fraunhofer.iosb.ilt.stp.processors.aggregation.OrderJournal;
+import de.fraunhofer.iosb.ilt.stp.sta.MqttMessage;
 import de.fraunhofer.iosb.ilt.stp.sta.Service;
 import de.fraunhofer.iosb.ilt.stp.utils.ChangingStatusLogger;
+import de.fraunhofer.iosb.ilt.stp.utils.CircuitBreaker;
 import de.fraunhofer.iosb.ilt.stp.utils.MergeQueue;
+import de.fraunhofer.iosb.ilt.stp.utils.SerialLaneExecutor;
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
@@ -59,21 +65,31 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import org.apache.commons.lang3.builder.CompareToBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,17 +106,27 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorBatchAggregate.class);
     private static final int RECEIVE_QUEUE_CAPACITY = 100000;
+    private static final long ECHO_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final int RECEIVE_BATCH_SIZE = 500;
+    /**
+     * The maximum number of backfill results written as one set.
+     */
+    private static final int BACKFILL_SET_SIZE = 100;
 
     private static class MessageContext {
 
         public final List<AggregateCombo> combos;
         public final String topic;
-        public final String message;
+        public final byte[] payload;
+        public final Duration delay;
+        public final MqttMessage publish;
 
-        public MessageContext(List<AggregateCombo> combos, String topic, String message) {
+        public MessageContext(List<AggregateCombo> combos, String topic, byte[] payload, Duration delay, MqttMessage publish) {
             this.combos = combos;
             this.topic = topic;
-            this.message = message;
+            this.payload = payload;
+            this.delay = delay;
+            this.publish = publish;
         }
     }
 
@@ -111,34 +137,191 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         private final Interval interval;
         private final Instant targetTime;
         private final long targetMillis;
-        private int retries = 0;
+        private final int retries;
+        /**
+         * The set this order writes its result with, or null to write it on
+         * its own.
+         */
+        private final BackfillSet backfill;
+        /**
+         * True if this order holds a Q record in the journal, that it has to
+         * close.
+         */
+        private volatile boolean journaled;
 
         public CalculationOrder(AggregateCombo combo, Interval interval, Instant delayUntill) {
+            this(combo, interval, delayUntill, 0, null);
+        }
+
+        public CalculationOrder(AggregateCombo combo, Interval interval, Instant delayUntill, BackfillSet backfill) {
+            this(combo, interval, delayUntill, 0, backfill);
+        }
+
+        public CalculationOrder(AggregateCombo combo, Interval interval, Instant delayUntill, int retries) {
+            this(combo, interval, delayUntill, retries, null);
+        }
+
+        private CalculationOrder(AggregateCombo combo, Interval interval, Instant delayUntill, int retries, BackfillSet backfill) {
             this.combo = combo;
             this.interval = interval;
             this.targetTime = delayUntill;
             this.targetMillis = targetTime.toEpochMilli();
+            this.retries = retries;
+            this.backfill = backfill;
         }
 
-        public void execute() {
-            waiting.set(false);
+        /**
+         * Marks the order as no longer open.
+         */
+        private void taken() {
             orders.remove(this);
+            waiting.set(false);
             loggingStatus.setOpenOrderCount(ordersOpen.decrementAndGet());
+            if (maxOpenOrders > 0) {
+                synchronized (orderCapacity) {
+                    orderCapacity.notifyAll();
+                }
+            }
+        }
+
+        public void execute() {
+            taken();
             try {
-                calculateAggregate(combo, interval);
+                circuitBreaker.awaitClosed();
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Interrupted while waiting for circuit breaker.");
+                Thread.currentThread().interrupt();
+                leaveBackfill();
                 return;
+            }
+            Observation newObs;
+            try {
+                newObs = computeAggregateLimited(combo, interval);
             } catch (StatusCodeException ex) {
                 LOGGER.error("Failed to calculate order: {},{}", ex.getStatusCode(), ex.getReturnedContent());
-            } catch (ServiceFailureException | ProcessException ex) {
+                leaveBackfill();
+                failed(ex.getStatusCode() + " " + ex.getReturnedContent());
+                return;
+            } catch (ServiceFailureException ex) {
                 LOGGER.error("Failed to calculate order: {}", ex.getMessage());
+                leaveBackfill();
+                failed(ex.getMessage());
+                return;
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Interrupted while waiting for http permit.");
+                Thread.currentThread().interrupt();
+                leaveBackfill();
+                return;
+            }
+            if (newObs == null) {
+                leaveBackfill();
+                circuitBreaker.success();
+                done(false);
+                return;
             }
-            if (retries < 5) {
-                retries++;
-                waiting.set(true);
-                offerOrder(this);
+            if (backfill != null) {
+                backfill.add(this, newObs);
+                return;
+            }
+            if (writeLanes == null) {
+                write(newObs);
+                return;
+            }
+            try {
+                // Each write is unique, later results for the same interval must not be dropped.
+                writeLanes.submit(combo, new Object(), () -> write(newObs));
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Interrupted while waiting for the write queue.");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Writes the calculated aggregate. Runs on the write stage, or on the
+         * calculation thread if there is no write stage. When the aggregate is
+         * buffered, the order is done or failed once the buffer reports the
+         * result of the write.
+         *
+         * @param newObs The aggregate to write.
+         */
+        private void write(Observation newObs) {
+            try {
+                CompletableFuture<Boolean> result = writeLimited(newObs);
+                loggingStatus.setUnchangedCount(sourceService.getSuppressed());
+                awaitWritten(result);
+            } catch (StatusCodeException ex) {
+                LOGGER.error("Failed to write order: {},{}", ex.getStatusCode(), ex.getReturnedContent());
+                failed(ex.getStatusCode() + " " + ex.getReturnedContent());
+            } catch (ServiceFailureException | ProcessException ex) {
+                LOGGER.error("Failed to write order: {}", ex.getMessage());
+                failed(ex.getMessage());
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Interrupted while waiting for http permit.");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Marks the order done or failed when the write result is known.
+         *
+         * @param result The result of the write.
+         */
+        private void awaitWritten(CompletableFuture<Boolean> result) {
+            if (result.isDone()) {
+                written(result);
+                return;
+            }
+            writesUnconfirmed.incrementAndGet();
+            result.whenComplete((value, failure) -> {
+                writesUnconfirmed.decrementAndGet();
+                written(result);
+            });
+        }
+
+        /**
+         * Tells the backfill set of this order that it has no result to write.
+         */
+        private void leaveBackfill() {
+            if (backfill != null) {
+                backfill.skip();
+            }
+        }
+
+        private void written(CompletableFuture<Boolean> result) {
+            try {
+                boolean written = result.join();
+                circuitBreaker.success();
+                done(written);
+            } catch (CompletionException | CancellationException ex) {
+                Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                LOGGER.error("Failed to write order: {}", cause.getMessage());
+                failed(cause.getMessage());
+            }
+        }
+
+        private void done(boolean written) {
+            if (journal != null) {
+                journal.done(combo, interval);
+            }
+            if (written && cascade && running) {
+                cascade(combo, interval);
+            }
+        }
+
+        private void failed(String reason) {
+            circuitBreaker.failure();
+            loggingStatus.setErrorCount(errorCount.incrementAndGet());
+            if (retries < maxRetries) {
+                scheduleRetry(this);
                 return;
             }
-            LOGGER.error("Failed to calculate order after 5 tries: {} {}", combo, interval);
+            LOGGER.error("Failed to calculate order after {} tries: {} {}", retries + 1, combo, interval);
+            if (journal != null) {
+                journal.failed(combo, interval);
+            }
+            if (deadLetters != null) {
+                deadLetters.add(combo, interval, reason);
+            }
         }
 
         public Instant getTargetTime() {
@@ -165,7 +348,7 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
 
         @Override
         public int hashCode() {
-            return Objects.hash(waiting, combo, interval);
+            return Objects.hash(combo, interval);
         }
 
         @Override
@@ -186,6 +369,105 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
 
     }
 
+    /**
+     * The orders for a run of complete intervals of one combo, like a
+     * backfill. Their results are written as one set once all orders are
+     * calculated, so the validator can check them with one query.
+     */
+    private class BackfillSet {
+
+        private final List<CalculationOrder> setOrders = new ArrayList<>();
+        private final List<Observation> results = new ArrayList<>();
+        private int expected = 0;
+        private int outstanding = 0;
+        private boolean sealed = false;
+
+        /**
+         * Counts an order that is about to be queued with this set.
+         */
+        public synchronized void expect() {
+            expected++;
+            outstanding++;
+        }
+
+        /**
+         * @return true if no more orders should be added to this set.
+         */
+        public synchronized boolean isFull() {
+            return expected >= BACKFILL_SET_SIZE;
+        }
+
+        /**
+         * Marks that no more orders are added to this set.
+         */
+        public void seal() {
+            synchronized (this) {
+                if (sealed) {
+                    return;
+                }
+                sealed = true;
+                if (outstanding > 0) {
+                    return;
+                }
+            }
+            write();
+        }
+
+        /**
+         * Adds the result of an order.
+         *
+         * @param order The order that calculated the result.
+         * @param result The calculated aggregate.
+         */
+        public void add(CalculationOrder order, Observation result) {
+            synchronized (this) {
+                setOrders.add(order);
+                results.add(result);
+                if (--outstanding > 0 || !sealed) {
+                    return;
+                }
+            }
+            write();
+        }
+
+        /**
+         * Counts an order that has no result to write.
+         */
+        public void skip() {
+            synchronized (this) {
+                if (--outstanding > 0 || !sealed) {
+                    return;
+                }
+            }
+            write();
+        }
+
+        private void write() {
+            if (results.isEmpty()) {
+                return;
+            }
+            List<CompletableFuture<Boolean>> written;
+            try {
+                written = writeLimited(results);
+                loggingStatus.setUnchangedCount(sourceService.getSuppressed());
+            } catch (ServiceFailureException | ProcessException ex) {
+                LOGGER.error("Failed to write {} results: {}", results.size(), ex.getMessage());
+                for (CalculationOrder order : setOrders) {
+                    order.failed(ex.getMessage());
+                }
+                return;
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Interrupted while waiting for http permit.");
+                Thread.currentThread().interrupt();
+                return;
+            }
+            LOGGER.debug("Wrote a set of {} results for {}.", results.size(), setOrders.get(0).combo);
+            for (int i = 0; i < setOrders.size(); i++) {
+                setOrders.get(i).awaitWritten(written.get(i));
+            }
+        }
+    }
+
     @ConfigurableField(editor = EditorClass.class,
             label = "Service", description = "The service to read observations from.",
             jsonField = "source")
@@ -204,6 +486,23 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
     @EditorLong.EdOptsLong(dflt = 10000, min = 0, max = 999999)
     private long delay;
 
+    @ConfigurableField(editor = EditorBoolean.class,
+            label = "Adaptive Delay", description = "Learn the message pattern of each source, and adapt the delay for that source to absorb bursts of messages.", optional = true)
+    @EditorBoolean.EdOptsBool(dflt = false)
+    private boolean adaptiveDelay;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Min Delay", description = "The minimum number of milliseconds to delay calculations with, when using adaptive delays.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 1000, min = 0, max = 999999)
+    private long minDelay;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Max Delay", description = "The maximum number of milliseconds to delay calculations with, when using adaptive delays.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 60000, min = 0, max = 999999)
+    private long maxDelay;
+
     @ConfigurableField(editor = EditorBoolean.class,
             label = "Fix References", description = "Fix the references between aggregate multidatastreams.", optional = true)
     @EditorBoolean.EdOptsBool(dflt = true)
@@ -214,11 +513,139 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
     @EditorInt.EdOptsInt(dflt = 2, min = 1, max = 99, step = 1)
     private int threads;
 
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Write Threads",
+            description = "The number of threads writing calculated aggregates, so that writing one interval overlaps calculating the next. "
+            + "0 to write on the calculation threads.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 2, min = 0, max = 99, step = 1)
+    private int writeThreads;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Write Queue Size",
+            description = "The maximum number of calculated aggregates waiting to be written. Calculations wait when the queue is full.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 100, min = 1, max = 99999, step = 1)
+    private int writeQueueSize;
+
+    @ConfigurableField(editor = EditorBoolean.class,
+            label = "Virtual Threads",
+            description = "Run each calculation and receiver on its own virtual thread (requires Java 21+). "
+            + "The number of parallel calculations is then limited by Max Http Requests instead of Thread Count.",
+            optional = true)
+    @EditorBoolean.EdOptsBool()
+    private boolean virtualThreads;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Max Http Requests",
+            description = "When using virtual threads, the maximum number of calculations talking to the server at the same time.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 64, min = 1, max = 9999, step = 1)
+    private int maxHttpRequests;
+
     @ConfigurableField(editor = EditorBoolean.class,
             label = "Cache", description = "Cache observations (only do this if there are no overlapping observations).", optional = true)
     @EditorBoolean.EdOptsBool(dflt = false)
     private boolean cacheObs;
 
+    @ConfigurableField(editor = EditorString.class,
+            label = "Journal File", description = "The file to journal open calculation orders in, so they survive a restart. Leave empty to disable.",
+            optional = true)
+    @EditorString.EdOptsString(dflt = "")
+    private String journalFile;
+
+    @ConfigurableField(editor = EditorBoolean.class,
+            label = "Cascade", description = "Directly recalculate higher aggregation levels after writing an aggregate, instead of waiting for the mqtt message of the aggregate.", optional = true)
+    @EditorBoolean.EdOptsBool(dflt = false)
+    private boolean cascade;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Max Retries", description = "The number of times a failed calculation is retried.", optional = true)
+    @EditorInt.EdOptsInt(dflt = 5, min = 0, max = 99, step = 1)
+    private int maxRetries;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Retry Delay", description = "The number of milliseconds to wait before the first retry. The delay doubles for each following retry.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 1000, min = 0, max = 999999)
+    private long retryDelay;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Max Retry Delay", description = "The maximum number of milliseconds to wait before a retry.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 60000, min = 0, max = 9999999)
+    private long retryMaxDelay;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Breaker Threshold", description = "The number of consecutive failed calculations after which all calculations are paused. 0 to disable.", optional = true)
+    @EditorInt.EdOptsInt(dflt = 10, min = 0, max = 9999, step = 1)
+    private int breakerThreshold;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Breaker Pause", description = "The number of milliseconds to pause all calculations for, when too many calculations failed.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 30000, min = 0, max = 9999999)
+    private long breakerPause;
+
+    @ConfigurableField(editor = EditorString.class,
+            label = "Dead-Letter File", description = "The file to store finally failed calculations in, so they can be retried later. Leave empty to only log them.",
+            optional = true)
+    @EditorString.EdOptsString(dflt = "")
+    private String deadLetterFile;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Max Open Orders", description = "The maximum number of open calculation orders. When reached, no more messages are read from the message bus until orders are done. 0 for no limit.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 100000, min = 0, max = 99999999)
+    private long maxOpenOrders;
+
+    @ConfigurableField(editor = EditorString.class,
+            label = "Wildcard Topics",
+            description = "Comma separated list of broad mqtt topics to listen to, instead of subscribing to each source separately. "
+            + "Messages must contain the expanded id of their Datastream or MultiDatastream, for instance: "
+            + "v1.0/Observations?$select=id,phenomenonTime&$expand=Datastream($select=id),MultiDatastream($select=id). "
+            + "Leave empty to subscribe to each source.",
+            optional = true)
+    @EditorString.EdOptsString(dflt = "")
+    private String wildcardTopics;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Instance Count",
+            description = "The number of processor instances that share the work, using a shared mqtt subscription. "
+            + "Each combo is owned by one instance, which does the startup catch-up and journal replay for it. "
+            + "Live messages are calculated by the instance that receives them.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 1, min = 1, max = 999, step = 1)
+    private int instanceCount;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Instance Index", description = "The index of this instance, from 0 to Instance Count - 1.", optional = true)
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 998, step = 1)
+    private int instanceIndex;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Poll Interval",
+            description = "For servers without mqtt: the number of milliseconds between polls of the Observations collection over http. "
+            + "0 to use mqtt.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 0, min = 0, max = 99999999)
+    private long pollInterval;
+
+    @ConfigurableField(editor = EditorString.class,
+            label = "Poll State File",
+            description = "The file to store the id polling starts from in, so polling continues where it left off after a restart. "
+            + "Leave empty to start after the newest Observation.",
+            optional = true)
+    @EditorString.EdOptsString(dflt = "")
+    private String pollStateFile;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Poll Overlap",
+            description = "The number of milliseconds each poll looks back, for Observations that became visible after Observations with a higher id.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 10000, min = 0, max = 99999999)
+    private long pollOverlap;
+
     private final Map<Id, WeakReference<Observation>> obsCache = new HashMap<>();
 
     private boolean noAct = false;
@@ -226,19 +653,77 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
     private ZoneId zoneId;
     private SensorThingsService stsSource;
     private AggregationData aggregationData;
+    private OrderJournal journal;
+    private DeadLetterFile deadLetters;
+    private CircuitBreaker circuitBreaker;
+    private ScheduledExecutorService retryScheduler;
+    private final AtomicLong retriesPending = new AtomicLong();
+    /**
+     * The number of buffered aggregates whose write result is not known yet.
+     */
+    private final AtomicLong writesUnconfirmed = new AtomicLong();
+    /**
+     * Notified when an order is taken for execution, to wake up receivers
+     * waiting for order capacity.
+     */
+    private final Object orderCapacity = new Object();
+    /**
+     * Limits the number of calculations talking to the server, when running
+     * on virtual threads. Null when running on platform threads, where the
+     * thread count is the limit.
+     */
+    private Semaphore httpPermits;
+    /**
+     * The mqtt path of each source, by the key of the source, used to route
+     * messages received on wildcard topics.
+     */
+    private final Map<String, String> sourcePathByKey = new ConcurrentHashMap<>();
+    /**
+     * The end of the latest phenomenonTime received, by source mqtt path.
+     */
+    private final Map<String, Instant> lastSeenBySource = new ConcurrentHashMap<>();
+    /**
+     * When we started listening. Used as last seen time for sources that did
+     * not send anything yet.
+     */
+    private Instant listeningSince;
+    private final Consumer<Instant> reconnectListener = this::catchUpGap;
+    private boolean retryFailed = false;
 
     private final BlockingQueue<MessageContext> messagesToHandle = new LinkedBlockingQueue<>(RECEIVE_QUEUE_CAPACITY);
     private final AtomicLong messagesCount = new AtomicLong();
-    private final Set<CalculationOrder> orders = new HashSet<>();
+    private final Set<CalculationOrder> orders = ConcurrentHashMap.newKeySet();
     private final AtomicLong ordersOpen = new AtomicLong();
     private final AtomicLong ordersTotal = new AtomicLong();
     private final AtomicLong topicCount = new AtomicLong();
     private final AtomicLong errorCount = new AtomicLong();
+    private final Map<String, AdaptiveDelay> delaysBySource = new ConcurrentHashMap<>();
+    private final AtomicLong delaySum = new AtomicLong();
+    /**
+     * The mqtt messages we expect for aggregates that we already cascaded, with
+     * the time the aggregate was written.
+     */
+    private final Map<String, Long> expectedEchoes = new ConcurrentHashMap<>();
+    private volatile long nextEchoPurge = 0;
 
     private BlockingQueue<CalculationOrder> orderQueue;
     private MergeQueue<CalculationOrder> orderMerger;
+    /**
+     * Takes orders from the order queue and hands them to their lane.
+     */
     private ExecutorService orderExecutorService;
+    /**
+     * Executes the orders, one at a time for each combo.
+     */
+    private SerialLaneExecutor<AggregateCombo> orderLanes;
+    /**
+     * Writes the calculated aggregates, in order for each combo. Null when
+     * writing on the calculation threads.
+     */
+    private SerialLaneExecutor<AggregateCombo> writeLanes;
     private ExecutorService messageReceptionService;
+    private ObservationPoller poller;
+    private ScheduledExecutorService pollScheduler;
     private final Aggregator aggregator = new Aggregator();
     private boolean running = false;
 
@@ -253,9 +738,27 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         zoneId = ZoneId.of(timeZone);
         sourceService.setNoAct(noAct);
         orderDelay = Duration.ofMillis(delay);
+        loggingStatus.setAverageDelay(delay);
 
         aggregationData = new AggregationData(stsSource, fixRefs);
         aggregationData.setZoneId(zoneId);
+
+        if (instanceCount < 1 || instanceIndex < 0 || instanceIndex >= instanceCount) {
+            throw new ConfigurationException("Instance Index must be between 0 and Instance Count - 1.");
+        }
+        if (instanceCount > 1 && !sourceService.isSharedSubscriptions()) {
+            LOGGER.warn("Running as one of {} instances, without shared subscriptions. Live messages will be calculated by all instances.", instanceCount);
+        }
+
+        circuitBreaker = new CircuitBreaker(stsSource.getEndpoint().toString(), breakerThreshold, breakerPause);
+        if (deadLetterFile != null && !deadLetterFile.isEmpty()) {
+            deadLetters = new DeadLetterFile(new File(deadLetterFile));
+        }
+    }
+
+    @Override
+    public void setRetryFailed(boolean retryFailed) {
+        this.retryFailed = retryFailed;
     }
 
     @Override
@@ -295,13 +798,21 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         return obsList;
     }
 
-    private void calculateAggregate(AggregateCombo combo, Interval interval) throws ServiceFailureException, ProcessException {
+    /**
+     * Fetches the source observations for the given combo and interval, and
+     * calculates the aggregate, without writing it.
+     *
+     * @param combo The combo to calculate the aggregate for.
+     * @param interval The interval to calculate the aggregate for.
+     * @return The aggregate, or null if there is nothing to write.
+     */
+    private Observation computeAggregate(AggregateCombo combo, Interval interval) throws ServiceFailureException {
         Instant start = interval.getStart();
         Instant end = interval.getEnd();
         List<Observation> sourceObs = findObservations(combo, start, end);
         LOGGER.debug("Calculating {} using {} obs for {}.", interval, sourceObs.size(), combo);
         if (sourceObs.isEmpty()) {
-            return;
+            return null;
         }
         LOGGER.trace("Obs:        {}/{}.", sourceObs.get(0).getPhenomenonTime(), sourceObs.get(sourceObs.size() - 1).getPhenomenonTime());
 
@@ -316,7 +827,7 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
             }
         } catch (NumberFormatException exc) {
             LOGGER.error("Failed to calculate statistics for " + combo.toString() + " interval " + interval, exc);
-            return;
+            return null;
         }
         int wantedSize = combo.target.getMultiObservationDataTypes().size();
         while (result.size() > wantedSize) {
@@ -337,7 +848,92 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         parameters.put("resultCount", sourceObs.size());
         newObs.setParameters(parameters);
         newObs.setPhenomenonTimeFrom(interval);
-        sourceService.addObservation(newObs);
+        return newObs;
+    }
+
+    /**
+     * Creates orders for the combos that use the target of the given combo as
+     * source, after an aggregate was written for the given interval.
+     *
+     * @param combo The combo an aggregate was written for.
+     * @param interval The interval of the written aggregate.
+     */
+    private void cascade(AggregateCombo combo, Interval interval) {
+        String path = combo.getTargetObsMqttPath();
+        List<AggregateCombo> dependents = aggregationData.getComboBySource().get(path);
+        if (dependents == null || dependents.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!noAct) {
+            expectedEchoes.put(echoKey(path, interval.getStart(), interval.getEnd()), now);
+        }
+        if (now > nextEchoPurge) {
+            nextEchoPurge = now + ECHO_TIMEOUT_MILLIS;
+            expectedEchoes.values().removeIf(t -> t < now - ECHO_TIMEOUT_MILLIS);
+        }
+        TimeObject phenTime = new TimeObject(interval);
+        // The aggregate is confirmed written, so there is no need to wait.
+        Duration cascadeDelay = Duration.ZERO;
+        for (AggregateCombo dependent : dependents) {
+            createOrdersFor(dependent, phenTime, EntityType.MULTIDATASTREAM, combo.target.getId(), cascadeDelay);
+        }
+    }
+
+    private static String echoKey(String topic, Instant start, Instant end) {
+        return topic + " " + start + "/" + end;
+    }
+
+    /**
+     * Checks if the given message is the echo of an aggregate that was already
+     * cascaded to the higher aggregation levels.
+     *
+     * @param topic The topic the message was received on.
+     * @param phenTime The phenomenonTime of the observation in the message.
+     * @return true if the message is an echo and can be ignored.
+     */
+    private boolean isEcho(String topic, TimeObject phenTime) {
+        if (expectedEchoes.isEmpty()) {
+            return false;
+        }
+        String key = echoKey(topic, Utils.getPhenTimeStart(phenTime), Utils.getPhenTimeEnd(phenTime));
+        return expectedEchoes.remove(key) != null;
+    }
+
+    private Observation computeAggregateLimited(AggregateCombo combo, Interval interval) throws ServiceFailureException, InterruptedException {
+        if (httpPermits == null) {
+            return computeAggregate(combo, interval);
+        }
+        httpPermits.acquire();
+        try {
+            return computeAggregate(combo, interval);
+        } finally {
+            httpPermits.release();
+        }
+    }
+
+    private CompletableFuture<Boolean> writeLimited(Observation newObs) throws ServiceFailureException, ProcessException, InterruptedException {
+        if (httpPermits == null) {
+            return sourceService.addObservationAsync(newObs);
+        }
+        httpPermits.acquire();
+        try {
+            return sourceService.addObservationAsync(newObs);
+        } finally {
+            httpPermits.release();
+        }
+    }
+
+    private List<CompletableFuture<Boolean>> writeLimited(List<Observation> newObs) throws ServiceFailureException, ProcessException, InterruptedException {
+        if (httpPermits == null) {
+            return sourceService.addObservations(newObs);
+        }
+        httpPermits.acquire();
+        try {
+            return sourceService.addObservations(newObs);
+        } finally {
+            httpPermits.release();
+        }
     }
 
     private void calculateAggregates(BlockingQueue<CalculationOrder> queue, AggregateCombo combo) throws ServiceFailureException, ProcessException {
@@ -371,23 +967,43 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         }
         Instant lastSourcePhenTime = Utils.getPhenTimeEnd(lastSourceObs);
 
-        boolean more = true;
-        while (more) {
-            Instant calcIntervalEnd = calcIntervalStart.plus(combo.level.duration);
+        BackfillSet backfill = new BackfillSet();
+        try {
+            boolean more = true;
+            while (more) {
+                Instant calcIntervalEnd = calcIntervalStart.plus(combo.level.duration);
 
-            if (lastSourcePhenTime.isBefore(calcIntervalEnd)) {
-                LOGGER.debug("Nothing (more) to do for {}.", combo);
-                return;
-            }
+                if (lastSourcePhenTime.isBefore(calcIntervalEnd)) {
+                    LOGGER.debug("Nothing (more) to do for {}.", combo);
+                    return;
+                }
 
-            createOrderForDirectExecution(queue, combo, Interval.of(calcIntervalStart, calcIntervalEnd));
-            calcIntervalStart = calcIntervalEnd;
+                if (backfill.isFull()) {
+                    backfill.seal();
+                    backfill = new BackfillSet();
+                }
+                backfill.expect();
+                if (!queueForDirectExecution(queue, new CalculationOrder(combo, Interval.of(calcIntervalStart, calcIntervalEnd), Instant.now(), backfill))) {
+                    backfill.skip();
+                }
+                calcIntervalStart = calcIntervalEnd;
+            }
+        } finally {
+            backfill.seal();
         }
 
     }
 
     private void calculateAggregates(BlockingQueue<CalculationOrder> queue, Collection<AggregateCombo> targets) {
+        Instant now = Instant.now();
         for (AggregateCombo target : targets) {
+            if (!isOwned(target)) {
+                continue;
+            }
+            if (journal != null && journal.isCurrent(target, now)) {
+                LOGGER.debug("Journal shows {} is up-to-date.", target);
+                continue;
+            }
             try {
                 calculateAggregates(queue, target);
             } catch (ServiceFailureException | ProcessException ex) {
@@ -397,8 +1013,7 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
     }
 
     private void workCalculateBases(final Iterator<AggregationBase> it) {
-        BlockingQueue<CalculationOrder> queue = new ArrayBlockingQueue<>(100);
-        orderMerger.addQueue(queue);
+        BlockingQueue<CalculationOrder> queue = orderMerger.createQueue(100);
         boolean moreWork = true;
         while (moreWork) {
             AggregationBase nextBase;
@@ -412,7 +1027,12 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
             }
             calculateAggregates(queue, nextBase.getCombos());
         }
-        orderMerger.removeQueue(queue);
+        try {
+            orderMerger.removeQueue(queue);
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while waiting for queue to empty.");
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void calculateAggregates(AggregationData aggregationData) {
@@ -435,12 +1055,151 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         }
     }
 
-    private void messageReceived(final List<AggregateCombo> combos, String topic, Mqtt3Publish message) {
+    /**
+     * Registers the arrival of a live message from the given source, and
+     * returns the delay for the orders it triggers.
+     *
+     * @param topic The source the message arrived for.
+     * @return The delay to use for the orders triggered by the message.
+     */
+    private Duration findDelayFor(String topic) {
+        if (!adaptiveDelay) {
+            return orderDelay;
+        }
+        AdaptiveDelay adaptive = getAdaptiveDelay(topic);
+        long newDelay;
+        synchronized (adaptive) {
+            long oldDelay = adaptive.getDelay();
+            newDelay = adaptive.messageArrived(System.currentTimeMillis());
+            delaySum.addAndGet(newDelay - oldDelay);
+        }
+        loggingStatus.setAverageDelay(delaySum.get() / Math.max(1, delaysBySource.size()));
+        return Duration.ofMillis(newDelay);
+    }
+
+    /**
+     * Returns the current delay for the given source, without registering an
+     * arrival. Used for Observations that are polled or caught up, since their
+     * arrival times do not tell anything about the message pattern of the
+     * source.
+     *
+     * @param topic The source to get the delay for.
+     * @return The delay to use for orders of the source.
+     */
+    private Duration currentDelayFor(String topic) {
+        if (!adaptiveDelay) {
+            return orderDelay;
+        }
+        return Duration.ofMillis(getAdaptiveDelay(topic).getDelay());
+    }
+
+    private AdaptiveDelay getAdaptiveDelay(String topic) {
+        return delaysBySource.computeIfAbsent(topic, t -> {
+            AdaptiveDelay newDelay = new AdaptiveDelay(delay, minDelay, maxDelay);
+            delaySum.addAndGet(newDelay.getDelay());
+            return newDelay;
+        });
+    }
+
+    /**
+     * Called on the callback thread of the mqtt client. Blocks while the
+     * receive queue is full. Since messages are only acknowledged after they
+     * are handled, the broker stops sending when too many messages are
+     * waiting.
+     */
+    private void messageReceived(final List<AggregateCombo> combos, String topic, MqttMessage message) {
         loggingStatus.setMsgQueueCount(messagesCount.incrementAndGet());
-        String body = new String(message.getPayloadAsBytes(), Utils.UTF8);
-        if (!messagesToHandle.offer(new MessageContext(combos, topic, body))) {
+        // For wildcard topics, the source and thus the delay is not known yet.
+        Duration orderDelayForSource = combos == null ? null : findDelayFor(topic);
+        try {
+            messagesToHandle.put(new MessageContext(combos, topic, message.getPayload(), orderDelayForSource, message));
+        } catch (InterruptedException ex) {
             loggingStatus.setMsgQueueCount(messagesCount.decrementAndGet());
-            LOGGER.error("Receive queue is full! More than {} messages in backlog", RECEIVE_QUEUE_CAPACITY);
+            LOGGER.warn("Interrupted while waiting for the receive queue, message will be redelivered.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The messages of one batch that are for the same source.
+     */
+    private static class SourceGroup {
+
+        final String topic;
+        final List<AggregateCombo> combos;
+        Duration delay;
+        /**
+         * The phenomenonTime with the earliest start.
+         */
+        TimeObject first;
+        /**
+         * The phenomenonTime with the latest end.
+         */
+        TimeObject last;
+        Instant start;
+        Instant end;
+        int count = 0;
+
+        public SourceGroup(String topic, List<AggregateCombo> combos) {
+            this.topic = topic;
+            this.combos = combos;
+        }
+
+        void add(TimeObject newPhenTime, Duration newDelay) {
+            Instant newStart = Utils.getPhenTimeStart(newPhenTime);
+            Instant newEnd = Utils.getPhenTimeEnd(newPhenTime);
+            if (count == 0 || newStart.isBefore(start)) {
+                start = newStart;
+                first = newPhenTime;
+            }
+            if (count == 0 || newEnd.isAfter(end)) {
+                end = newEnd;
+                last = newPhenTime;
+            }
+            delay = newDelay;
+            count++;
+        }
+    }
+
+    /**
+     * Handles a batch of received messages. Messages for the same source are
+     * grouped, and the intervals to recalculate are determined once for each
+     * group, from the earliest to the latest phenomenonTime in the group.
+     *
+     * @param batch The messages to handle.
+     * @throws InterruptedException If interrupted while waiting for order
+     * capacity. The messages are then not acknowledged.
+     */
+    private void handleMessages(List<MessageContext> batch) throws InterruptedException {
+        loggingStatus.setMsgQueueCount(messagesCount.addAndGet(-batch.size()));
+        awaitOrderCapacity();
+        Map<String, SourceGroup> groups = new LinkedHashMap<>();
+        for (MessageContext context : batch) {
+            addToGroup(groups, context);
+        }
+        for (SourceGroup group : groups.values()) {
+            createOrdersFor(group);
+        }
+        for (MessageContext context : batch) {
+            context.publish.acknowledge();
+        }
+    }
+
+    /**
+     * Blocks while the number of open orders is at or above maxOpenOrders.
+     * Orders created internally, like retries and cascades, do not wait, so
+     * the executors can not block themselves.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void awaitOrderCapacity() throws InterruptedException {
+        if (maxOpenOrders <= 0) {
+            return;
+        }
+        synchronized (orderCapacity) {
+            while (ordersOpen.get() >= maxOpenOrders) {
+                orderCapacity.wait(1000);
+            }
         }
     }
 
@@ -450,13 +1209,48 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         final List<AggregateCombo> combos = entry.getValue();
         // First make sure we are up-to-date.
         calculateAggregates(orderQueue, combos);
+        if (isWildcardMode() || isPollingMode()) {
+            return;
+        }
         // Then add the subscription.
         sourceService.subscribe(path, (message) -> {
             messageReceived(combos, path, message);
-        });
+        }, true);
         loggingStatus.setTopicCount(topicCount.incrementAndGet());
     }
 
+    private boolean isWildcardMode() {
+        return wildcardTopics != null && !wildcardTopics.trim().isEmpty();
+    }
+
+    /**
+     * Indexes the sources by their key, so the combos for messages on wildcard
+     * topics and for polled Observations can be found.
+     */
+    private void indexSourceKeys(Map<String, List<AggregateCombo>> comboBySource) {
+        for (Map.Entry<String, List<AggregateCombo>> entry : comboBySource.entrySet()) {
+            sourcePathByKey.put(entry.getValue().get(0).getSourceKey(), entry.getKey());
+        }
+    }
+
+    /**
+     * Subscribes to the wildcard topics. The combos for messages on the
+     * wildcard topics are found when the message is handled.
+     */
+    private void createWildcardSubscriptions() {
+        for (String topic : wildcardTopics.split(",")) {
+            String cleanTopic = topic.trim();
+            if (cleanTopic.isEmpty()) {
+                continue;
+            }
+            LOGGER.info("Subscribing to wildcard topic: {}", cleanTopic);
+            sourceService.subscribe(cleanTopic, (message) -> {
+                messageReceived(null, cleanTopic, message);
+            }, true);
+            loggingStatus.setTopicCount(topicCount.incrementAndGet());
+        }
+    }
+
     private void workCreateSubscriptions(final Iterator<Map.Entry<String, List<AggregateCombo>>> it) {
         boolean moreWork = true;
         while (moreWork) {
@@ -476,6 +1270,16 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
     private void createSubscriptions(AggregationData aggregationData) {
         Map<String, List<AggregateCombo>> comboBySource = aggregationData.getComboBySource();
         LOGGER.info("Found {} mqtt paths to watch.", comboBySource.keySet().size());
+        if (isWildcardMode() || isPollingMode()) {
+            indexSourceKeys(comboBySource);
+        }
+        if (isPollingMode()) {
+            // Set the high-water mark first, so nothing is missed while catching up.
+            startPolling();
+        } else if (isWildcardMode()) {
+            // Subscribe first, so no messages are missed while catching up.
+            createWildcardSubscriptions();
+        }
 
         final Iterator<Map.Entry<String, List<AggregateCombo>>> it = comboBySource.entrySet().iterator();
         final List<Thread> threadList = new ArrayList<>();
@@ -493,45 +1297,262 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
                 LOGGER.error("Interrupted while waiting for threads!");
             }
         }
+        if (isPollingMode() && running) {
+            pollScheduler = Executors.newSingleThreadScheduledExecutor();
+            pollScheduler.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+            LOGGER.info("Polling for new Observations every {} ms.", pollInterval);
+        }
+    }
 
+    private void addToGroup(Map<String, SourceGroup> groups, MessageContext context) {
+        byte[] payload = context.payload;
+        try {
+            Utils.MessageInfo info = Utils.parseMessage(payload);
+            List<AggregateCombo> combos = context.combos;
+            String topic = context.topic;
+            Duration delay = context.delay;
+            if (combos == null) {
+                // Received on a wildcard topic, find the source.
+                topic = info.sourceKey == null ? null : sourcePathByKey.get(info.sourceKey);
+                if (topic == null) {
+                    LOGGER.trace("No aggregates for source {} on {}.", info.sourceKey, context.topic);
+                    return;
+                }
+                combos = aggregationData.getComboBySource().get(topic);
+                delay = findDelayFor(topic);
+            }
+            if (info.phenomenonTime == null) {
+                LOGGER.error("Received Observation with no PhenomenonTime. Message: {}", new String(payload, Utils.UTF8));
+            } else {
+                addToGroup(groups, topic, combos, info.phenomenonTime, delay);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Invalid message: {}", new String(payload, Utils.UTF8), ex);
+        } catch (Exception ex) {
+            LOGGER.error("Exception processing!", ex);
+        }
+    }
+
+    private void addToGroup(Map<String, SourceGroup> groups, String topic, List<AggregateCombo> combos, TimeObject phenTime, Duration delay) {
+        if (isEcho(topic, phenTime)) {
+            LOGGER.debug("{}: Ignoring message for already cascaded aggregate.", topic);
+            return;
+        }
+        groups.computeIfAbsent(topic, t -> new SourceGroup(t, combos))
+                .add(phenTime, delay);
+        lastSeenBySource.merge(topic, Utils.getPhenTimeEnd(phenTime), (a, b) -> a.isAfter(b) ? a : b);
     }
 
-    private void createOrderFor(List<AggregateCombo> combos, String message) {
+    /**
+     * Handles a page of polled Observations, in the same way as a batch of
+     * received messages.
+     *
+     * @param page The polled Observations.
+     */
+    private void handlePolled(List<Utils.MessageInfo> page) {
         try {
+            awaitOrderCapacity();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Map<String, SourceGroup> groups = new LinkedHashMap<>();
+        for (Utils.MessageInfo info : page) {
+            String topic = info.sourceKey == null ? null : sourcePathByKey.get(info.sourceKey);
+            if (topic == null || info.phenomenonTime == null) {
+                continue;
+            }
+            addToGroup(groups, topic, aggregationData.getComboBySource().get(topic), info.phenomenonTime, currentDelayFor(topic));
+        }
+        for (SourceGroup group : groups.values()) {
+            createOrdersFor(group);
+        }
+    }
+
+    private void poll() {
+        try {
+            long count = poller.poll(this::handlePolled);
+            if (count > 0) {
+                LOGGER.debug("Polled {} new Observations.", count);
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to poll for new Observations: {}", ex.getMessage());
+        } catch (RuntimeException ex) {
+            LOGGER.error("Exception polling!", ex);
+        }
+    }
+
+    private boolean isPollingMode() {
+        return pollInterval > 0;
+    }
+
+    /**
+     * Sets up the poller, so that Observations added during the catch-up are
+     * found by the first poll.
+     */
+    private void startPolling() {
+        File stateFile = pollStateFile == null || pollStateFile.isEmpty() ? null : new File(pollStateFile);
+        poller = new ObservationPoller(stsSource, stateFile, RECEIVE_BATCH_SIZE, pollOverlap);
+        try {
+            poller.open();
+        } catch (ServiceFailureException ex) {
+            throw new IllegalStateException("Failed to start polling.", ex);
+        }
+    }
+
+    private void stopPolling() {
+        if (pollScheduler != null) {
+            pollScheduler.shutdown();
+            try {
+                if (!pollScheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                    pollScheduler.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                pollScheduler.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            pollScheduler = null;
+        }
+        poller = null;
+    }
+
+    /**
+     * Finds observations that were posted while the mqtt connection was down,
+     * and creates orders for the intervals they affect. For each source, the
+     * first and last observation after the last seen phenomenonTime are
+     * fetched.
+     *
+     * Observations posted during the gap with a phenomenonTime before the
+     * last seen time are not found.
+     *
+     * @param gapStart The time the connection was lost.
+     */
+    private void catchUpGap(Instant gapStart) {
+        SerialLaneExecutor<AggregateCombo> lanes = orderLanes;
+        if (!running || lanes == null) {
+            return;
+        }
+        Map<String, List<AggregateCombo>> comboBySource = aggregationData.getComboBySource();
+        Instant until = Instant.now();
+        LOGGER.info("Checking {} sources for observations missed since {}.", comboBySource.size(), gapStart);
+        int submitted = 0;
+        for (Map.Entry<String, List<AggregateCombo>> entry : comboBySource.entrySet()) {
+            if (!running) {
+                break;
+            }
+            String path = entry.getKey();
+            List<AggregateCombo> combos = entry.getValue();
             AggregateCombo mainCombo = combos.get(0);
+            if (!isOwned(mainCombo)) {
+                continue;
+            }
+            try {
+                // Each check is unique, it must not be dropped as a duplicate.
+                lanes.submit(mainCombo, new Object(), () -> catchUpGap(path, combos, until));
+                submitted++;
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while queueing catch-up checks.");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RejectedExecutionException ex) {
+                LOGGER.debug("Stopped while queueing catch-up checks.");
+                return;
+            }
+        }
+        LOGGER.info("Queued catch-up checks for {} sources.", submitted);
+    }
+
+    /**
+     * Checks one source for observations that were missed while the
+     * connection was lost, with one query, and orders the intervals they
+     * touch, in the same way as for a group of received messages.
+     */
+    private void catchUpGap(String path, List<AggregateCombo> combos, Instant until) {
+        AggregateCombo mainCombo = combos.get(0);
+        Instant since = lastSeenBySource.getOrDefault(path, listeningSince);
+        try {
+            List<Observation> missed = mainCombo.getSourceObservationsBetween(since, until);
+            if (missed.isEmpty()) {
+                return;
+            }
+            SourceGroup group = new SourceGroup(path, combos);
+            Duration delay = currentDelayFor(path);
+            for (Observation obs : missed) {
+                group.add(obs.getPhenomenonTime(), delay);
+            }
+            lastSeenBySource.merge(path, group.end, (a, b) -> a.isAfter(b) ? a : b);
+            LOGGER.debug("{}: Missed {} observations from {} to {}.", path, missed.size(), group.start, group.end);
+            createOrdersFor(group);
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to check {} for missed observations: {}", path, ex.getMessage());
+        }
+    }
+
+    private void createOrdersFor(SourceGroup group) {
+        try {
+            AggregateCombo mainCombo = group.combos.get(0);
             Id sourceId = mainCombo.getSourceId();
             EntityType sourceType = mainCombo.getSourceType();
-            Observation obs = parseMessageToObservation(message);
-            if (obs.getPhenomenonTime() == null) {
-                LOGGER.error("Received Observation with no PhenomenonTime. Message: {}", message);
-            } else {
-                for (AggregateCombo combo : combos) {
-                    createOrdersFor(combo, obs, sourceType, sourceId);
+            if (group.count == 1 || group.first == group.last) {
+                for (AggregateCombo combo : group.combos) {
+                    createOrdersFor(combo, group.last, sourceType, sourceId, group.delay);
                 }
+                return;
+            }
+            LOGGER.debug("{} {}: Combined {} messages from {} to {}.", sourceType, sourceId, group.count, group.start, group.end);
+            for (AggregateCombo combo : group.combos) {
+                createOrdersFor(combo, group, sourceType, sourceId);
             }
-        } catch (IOException ex) {
-            LOGGER.error("Invalid message.", ex);
         } catch (Exception ex) {
             LOGGER.error("Exception processing!", ex);
         }
     }
 
-    private void createOrdersFor(AggregateCombo combo, Observation obs, EntityType sourceType, Id sourceId) {
-        List<Interval> intervals = combo.calculateIntervalsForTime(obs.getPhenomenonTime());
+    /**
+     * Creates the orders for a group of messages of one source. The earliest
+     * and the latest phenomenonTime go through the same path as single
+     * messages, so the current interval of the combo moves forward. The
+     * intervals in between are complete, and are ordered directly.
+     */
+    private void createOrdersFor(AggregateCombo combo, SourceGroup group, EntityType sourceType, Id<?> sourceId) {
+        createOrdersFor(combo, group.first, sourceType, sourceId, group.delay);
+        if (!group.start.equals(group.end)) {
+            List<Interval> intervals = combo.calculateIntervalsForTime(new TimeObject(Interval.of(group.start, group.end)));
+            BackfillSet backfill = new BackfillSet();
+            for (int i = 1; i < intervals.size() - 1; i++) {
+                Interval interval = intervals.get(i);
+                LOGGER.debug("{} {}: Interval {} recalculating, covered by group.", sourceType, sourceId, interval);
+                if (backfill.isFull()) {
+                    backfill.seal();
+                    backfill = new BackfillSet();
+                }
+                // Counted before offering, the order may finish before offerOrder returns.
+                backfill.expect();
+                if (!offerOrder(new CalculationOrder(combo, interval, Instant.now().plus(group.delay), backfill))) {
+                    backfill.skip();
+                }
+            }
+            backfill.seal();
+        }
+        createOrdersFor(combo, group.last, sourceType, sourceId, group.delay);
+    }
+
+    private void createOrdersFor(AggregateCombo combo, TimeObject phenTime, EntityType sourceType, Id sourceId, Duration delay) {
+        List<Interval> intervals = combo.calculateIntervalsForTime(phenTime);
         int count = intervals.size();
         if (count > 1) {
             for (Interval interval : intervals) {
                 LOGGER.debug("{} {}: Interval {} recalculating.", sourceType, sourceId, interval);
-                CalculationOrder order = new CalculationOrder(combo, interval, Instant.now().plus(orderDelay));
+                CalculationOrder order = new CalculationOrder(combo, interval, Instant.now().plus(delay));
                 offerOrder(order);
             }
         } else {
             for (Interval interval : intervals) {
                 Interval toCalculate;
-                if (interval.getEnd().equals(Utils.getPhenTimeEnd(obs))) {
+                if (interval.getEnd().equals(Utils.getPhenTimeEnd(phenTime))) {
                     // The observation is the last one for the interval.
                     LOGGER.debug("{} {}: Interval {} recalculating, because end reached.", sourceType, sourceId, interval);
-                    CalculationOrder order = new CalculationOrder(combo, interval, Instant.now().plus(orderDelay));
+                    CalculationOrder order = new CalculationOrder(combo, interval, Instant.now().plus(delay));
                     offerOrder(order);
                     toCalculate = combo.unsetCurrent(interval);
                 } else {
@@ -539,32 +1560,49 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
                 }
                 if (toCalculate != null) {
                     LOGGER.debug("{} {}: Interval {} recalculating, because we now have {}.", sourceType, sourceId, toCalculate, interval);
-                    CalculationOrder order = new CalculationOrder(combo, toCalculate, Instant.now().plus(orderDelay));
+                    CalculationOrder order = new CalculationOrder(combo, toCalculate, Instant.now().plus(delay));
                     offerOrder(order);
                 }
             }
         }
     }
 
-    private void createOrderForDirectExecution(BlockingQueue<CalculationOrder> queue, AggregateCombo combo, Interval interval) {
-        CalculationOrder order = new CalculationOrder(combo, interval, Instant.now());
+    private boolean queueForDirectExecution(BlockingQueue<CalculationOrder> queue, CalculationOrder order) {
         try {
             while (!queue.offer(order, 1, TimeUnit.SECONDS)) {
                 LOGGER.warn("Could not offer order for a full second...");
             }
             loggingStatus.setOpenOrderCount(ordersOpen.incrementAndGet());
             loggingStatus.setTotalOrderCount(ordersTotal.incrementAndGet());
+            return true;
         } catch (InterruptedException exc) {
             LOGGER.warn("Rude wakeup.", exc);
+            return false;
         }
     }
 
     private boolean offerOrder(CalculationOrder order) {
         if (orders.contains(order)) {
+            if (journal != null && order.journaled) {
+                // The queued order covers the retry, close the record of the failed order.
+                journal.failed(order.combo, order.interval);
+            }
             return false;
         }
-        if (!orderQueue.offer(order)) {
-            LOGGER.error("Could not queue order, queue full!");
+        // A retry takes over the journal record of the order that failed.
+        // Journal before queueing, the dispatcher may drop the order at once.
+        if (journal != null && order.retries == 0) {
+            journal.queued(order.combo, order.interval);
+            order.journaled = true;
+        }
+        try {
+            orderQueue.put(order);
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while queueing order {} {}.", order.combo, order.interval);
+            Thread.currentThread().interrupt();
+            if (journal != null && order.journaled) {
+                journal.failed(order.combo, order.interval);
+            }
             return false;
         }
         orders.add(order);
@@ -573,20 +1611,152 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         return true;
     }
 
-    private Observation parseMessageToObservation(String message) throws IOException {
-        return ObjectMapperFactory.get().readValue(message, Observation.class);
+    /**
+     * Schedules a retry of the given failed order, using an exponential
+     * backoff with jitter.
+     *
+     * @param failed The order that failed.
+     */
+    private void scheduleRetry(CalculationOrder failed) {
+        long maxBackoff = Math.min(retryMaxDelay, retryDelay << Math.min(failed.retries, 30));
+        long backoff = maxBackoff / 2 + ThreadLocalRandom.current().nextLong(maxBackoff / 2 + 1);
+        CalculationOrder retry = new CalculationOrder(failed.combo, failed.interval, Instant.now().plusMillis(backoff), failed.retries + 1);
+        retry.journaled = failed.journaled;
+        LOGGER.debug("Retrying {} {} in {}ms.", failed.combo, failed.interval, backoff);
+        if (running) {
+            // The DelayQueue takes care of the backoff.
+            offerOrder(retry);
+            return;
+        }
+        ScheduledExecutorService scheduler = retryScheduler;
+        if (scheduler == null) {
+            // Stopping, the journal still holds the order.
+            LOGGER.debug("Not retrying {} {}, stopped.", failed.combo, failed.interval);
+            return;
+        }
+        retriesPending.incrementAndGet();
+        try {
+            scheduler.schedule(() -> {
+                queueForDirectExecution(orderQueue, retry);
+                retriesPending.decrementAndGet();
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            retriesPending.decrementAndGet();
+            LOGGER.debug("Not retrying {} {}, stopped.", failed.combo, failed.interval);
+        }
+    }
+
+    /**
+     * Checks if this instance owns the given combo, when several instances
+     * share the work. Only the owner does the work that is not triggered by a
+     * received message.
+     *
+     * @param combo The combo to check.
+     * @return true if this instance owns the combo.
+     */
+    private boolean isOwned(AggregateCombo combo) {
+        if (instanceCount <= 1) {
+            return true;
+        }
+        return Math.floorMod(OrderJournal.targetIdFor(combo).hashCode(), instanceCount) == instanceIndex;
+    }
+
+    private Map<String, AggregateCombo> getCombosByTarget() {
+        Map<String, AggregateCombo> combosByTarget = new HashMap<>();
+        for (AggregationBase base : aggregationData.getCombosByBase().values()) {
+            for (AggregateCombo combo : base.getCombos()) {
+                combosByTarget.put(OrderJournal.targetIdFor(combo), combo);
+            }
+        }
+        return combosByTarget;
+    }
+
+    private void replayDeadLetters() {
+        if (!retryFailed) {
+            return;
+        }
+        if (deadLetters == null) {
+            LOGGER.warn("Asked to retry failed calculations, but no dead-letter file is configured.");
+            return;
+        }
+        int count = deadLetters.takeAll(getCombosByTarget(), (combo, interval) -> {
+            CalculationOrder order = new CalculationOrder(combo, interval, Instant.now());
+            if (running) {
+                offerOrder(order);
+            } else {
+                queueForDirectExecution(orderQueue, order);
+            }
+        });
+        LOGGER.info("Re-injected {} failed calculations from the dead-letter file.", count);
+    }
+
+    /**
+     * Waits until all queued orders are executed and written, and no retries
+     * are pending.
+     */
+    private void waitForRetries() {
+        try {
+            while (retriesPending.get() > 0 || orderLanes.getPendingCount() > 0 || getPendingWrites() > 0 || writesUnconfirmed.get() > 0 || !orderQueue.isEmpty()) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while waiting for retries.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int getPendingWrites() {
+        SerialLaneExecutor<AggregateCombo> lanes = writeLanes;
+        return lanes == null ? 0 : lanes.getPendingCount();
+    }
+
+    private void openJournal() {
+        if (journal != null || journalFile == null || journalFile.isEmpty()) {
+            return;
+        }
+        OrderJournal newJournal = new OrderJournal(new File(journalFile));
+        try {
+            newJournal.open();
+            journal = newJournal;
+        } catch (IOException ex) {
+            LOGGER.error("Failed to open order journal, continuing without.", ex);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        int count = journal.replay(getCombosByTarget(), (combo, interval) -> {
+            if (isOwned(combo)) {
+                offerOrder(new CalculationOrder(combo, interval, Instant.now()));
+            }
+        });
+        LOGGER.info("Replayed {} open orders from the journal.", count);
     }
 
     @Override
     public void process() {
         periodLogger.start();
+        openJournal();
         orderQueue = new ArrayBlockingQueue<>(200 * threads);
         orderMerger = new MergeQueue<>(orderQueue);
         orderMerger.start();
         startProcessors();
+        replayDeadLetters();
         calculateAggregates(aggregationData);
         if (!running) {
+            waitForRetries();
             stopProcessors(30);
+            sourceService.closeWriter();
+            closeJournal();
             periodLogger.stop();
         }
     }
@@ -596,17 +1766,29 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         periodLogger.start();
         orderQueue = new DelayQueue<>();
         running = true;
+        listeningSince = Instant.now();
         try {
-            sourceService.getMqttClient();
+            if (!isPollingMode()) {
+                sourceService.addReconnectListener(reconnectListener);
+                sourceService.getMqttClient();
+            }
+            openJournal();
             startProcessors();
-            if (messageReceptionService == null) {
-                messageReceptionService = ProcessorHelper.createProcessors(
+            replayJournal();
+            replayDeadLetters();
+            if (!isPollingMode() && messageReceptionService == null) {
+                messageReceptionService = ProcessorHelper.createBatchProcessors(
                         threads,
-                        messagesToHandle, (MessageContext x) -> {
-                            loggingStatus.setMsgQueueCount(messagesCount.decrementAndGet());
-                            createOrderFor(x.combos, x.message);
+                        messagesToHandle, (List<MessageContext> batch) -> {
+                            try {
+                                handleMessages(batch);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
                         },
-                        "Receiver");
+                        RECEIVE_BATCH_SIZE,
+                        "Receiver",
+                        virtualThreads);
             }
             createSubscriptions(aggregationData);
         } catch (URISyntaxException ex) {
@@ -619,44 +1801,100 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
         LOGGER.debug("Stopping ProcessorBatchAggregate...");
         running = false;
 
+        stopPolling();
+        sourceService.removeReconnectListener(reconnectListener);
         sourceService.closeMqttClient();
         if (messageReceptionService != null) {
             LOGGER.info("Stopping Receivers...");
             ProcessorHelper.shutdownProcessors(messageReceptionService, messagesToHandle, 5, TimeUnit.SECONDS);
         }
         stopProcessors(5);
+        sourceService.closeWriter();
+        closeJournal();
 
         periodLogger.stop();
         LOGGER.debug("Done stopping ProcessorBatchAggregate.");
     }
 
     private synchronized void startProcessors() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        if (orderLanes == null) {
+            if (virtualThreads && ProcessorHelper.isVirtualThreadsSupported()) {
+                LOGGER.info("Running calculations on virtual threads, with at most {} http requests.", maxHttpRequests);
+                httpPermits = new Semaphore(maxHttpRequests);
+                orderLanes = new SerialLaneExecutor<>(ProcessorHelper.createExecutor(threads, "Aggregator", true), 10 * maxHttpRequests);
+            } else {
+                orderLanes = new SerialLaneExecutor<>(threads, 10 * threads, "Aggregator");
+            }
+        }
+        if (writeLanes == null && writeThreads > 0) {
+            boolean virtual = virtualThreads && ProcessorHelper.isVirtualThreadsSupported();
+            writeLanes = new SerialLaneExecutor<>(ProcessorHelper.createExecutor(writeThreads, "Writer", virtual), writeQueueSize);
+        }
         if (orderExecutorService == null) {
             orderExecutorService = ProcessorHelper.createProcessors(
-                    threads,
+                    1,
                     orderQueue,
-                    x -> x.execute(),
-                    "Aggregator");
+                    this::dispatchOrder,
+                    "Dispatcher");
+        }
+    }
+
+    /**
+     * Hands the given order to the lane of its combo, so that no two orders
+     * for the same combo run at the same time. If an order for the same
+     * interval is already waiting in the lane, the given order is dropped.
+     *
+     * @param order The order to dispatch.
+     */
+    private void dispatchOrder(CalculationOrder order) {
+        try {
+            if (!orderLanes.submit(order.combo, order.interval, order::execute)) {
+                LOGGER.debug("Dropping duplicate order {} {}.", order.combo, order.interval);
+                order.taken();
+                order.leaveBackfill();
+                if (journal != null && order.journaled) {
+                    // The waiting order has its own record.
+                    journal.failed(order.combo, order.interval);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private synchronized void stopProcessors(long waitSeconds) {
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
+        }
         if (orderMerger != null) {
             orderMerger.stop();
         }
         if (orderExecutorService != null) {
             LOGGER.info("Stopping Processors...");
             ProcessorHelper.shutdownProcessors(orderExecutorService, orderQueue, waitSeconds, TimeUnit.SECONDS);
+            orderExecutorService = null;
+        }
+        if (orderLanes != null) {
+            orderLanes.shutdown(waitSeconds, TimeUnit.SECONDS);
+            orderLanes = null;
+        }
+        if (writeLanes != null) {
+            writeLanes.shutdown(waitSeconds, TimeUnit.SECONDS);
+            writeLanes = null;
         }
     }
 
     private static class LoggingStatus extends ChangingStatusLogger.ChangingStatusDefault {
 
-        public static final String MESSAGE = "Topics: {}; MsgQueue: {}; Orders Open/Total {} / {}; Errors: {}";
+        public static final String MESSAGE = "Topics: {}; MsgQueue: {}; Orders Open/Total {} / {}; Errors: {}; Avg Delay: {}ms; Unchanged: {}";
         public final Object[] status;
 
         public LoggingStatus() {
-            super(new Object[5]);
+            super(new Object[7]);
             status = getLogParams();
             Arrays.setAll(status, (int i) -> Long.valueOf(0));
         }
@@ -686,5 +1924,15 @@ public class ProcessorBatchAggregate extends AbstractConfigurable<Void, Void> im
             return this;
         }
 
+        public LoggingStatus setAverageDelay(Long delay) {
+            status[5] = delay;
+            return this;
+        }
+
+        public LoggingStatus setUnchangedCount(Long count) {
+            status[6] = count;
+            return this;
+        }
+
     }
 }
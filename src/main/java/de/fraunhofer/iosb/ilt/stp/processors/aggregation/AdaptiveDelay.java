@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.processors.aggregation;
+
+/**
+ * Learns the message pattern of a single source and determines how long
+ * calculations for that source should be delayed to absorb a burst of
+ * messages.
+ *
+ * Messages that arrive less than maxDelay apart belong to the same burst. The
+ * delay is the (moving) average length of a burst, plus the average time
+ * between two messages in a burst, bounded by minDelay and maxDelay.
+ *
+ * @author scf
+ */
+public class AdaptiveDelay {
+
+    /**
+     * The weight of a new sample in the moving averages.
+     */
+    private static final double WEIGHT = 0.2;
+
+    private final long minDelay;
+    private final long maxDelay;
+
+    private long lastArrival = -1;
+    private long burstStart;
+    private double avgGap = -1;
+    private double avgBurst = -1;
+    private long delay;
+
+    /**
+     * Create a new AdaptiveDelay.
+     *
+     * @param initialDelay The delay to use until something is known about the
+     * source.
+     * @param minDelay The minimum delay, in milliseconds.
+     * @param maxDelay The maximum delay, in milliseconds.
+     */
+    public AdaptiveDelay(long initialDelay, long minDelay, long maxDelay) {
+        this.minDelay = minDelay;
+        this.maxDelay = Math.max(minDelay, maxDelay);
+        this.delay = clamp(initialDelay);
+    }
+
+    /**
+     * Register the arrival of a message, and calculate the new delay.
+     *
+     * @param now The arrival time of the message, in epoch milliseconds.
+     * @return The delay to use for calculations triggered by this message.
+     */
+    public synchronized long messageArrived(long now) {
+        if (lastArrival < 0) {
+            burstStart = now;
+            lastArrival = now;
+            return delay;
+        }
+        long gap = now - lastArrival;
+        if (gap > maxDelay) {
+            // The previous burst ended.
+            avgBurst = average(avgBurst, lastArrival - burstStart);
+            burstStart = now;
+        } else {
+            avgGap = average(avgGap, gap);
+        }
+        lastArrival = now;
+        delay = clamp(Math.round(Math.max(avgBurst, 0) + Math.max(avgGap, 0)));
+        return delay;
+    }
+
+    /**
+     * @return The current delay, in milliseconds.
+     */
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    private static double average(double avg, long sample) {
+        if (avg < 0) {
+            return sample;
+        }
+        return avg + WEIGHT * (sample - avg);
+    }
+
+    private long clamp(long value) {
+        return Math.min(maxDelay, Math.max(minDelay, value));
+    }
+
+}
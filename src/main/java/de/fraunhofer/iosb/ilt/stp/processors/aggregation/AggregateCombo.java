@@ -37,6 +37,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.lang3.builder.CompareToBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,7 +66,11 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
     public AggregationLevel level;
     public String baseName;
     private ZoneId zoneId;
-    private Interval currentInterval;
+    /**
+     * The interval the latest received observation falls in. Updated by
+     * several receiver threads, without locking.
+     */
+    private final AtomicReference<Interval> currentInterval = new AtomicReference<>();
 
     public AggregateCombo(Thing targetThing, MultiDatastream target) {
         this.targetThing = targetThing;
@@ -139,6 +144,33 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
         }
     }
 
+    /**
+     * Finds the source observations with a phenomenonTime after the given
+     * start and before the given end, with one query. Only the
+     * phenomenonTime of the observations is loaded.
+     *
+     * @param after The time the phenomenonTime must be after.
+     * @param before The time the phenomenonTime must be before.
+     * @return The observations, ordered by phenomenonTime.
+     * @throws ServiceFailureException If the query fails.
+     */
+    public List<Observation> getSourceObservationsBetween(Instant after, Instant before) throws ServiceFailureException {
+        List<Observation> result = new ArrayList<>();
+        if (!hasSource()) {
+            return result;
+        }
+        EntityList<Observation> entityList = getObsDaoForSource().query()
+                .select("phenomenonTime")
+                .filter("phenomenonTime gt " + after.toString() + " and phenomenonTime lt " + before.toString())
+                .orderBy("phenomenonTime asc")
+                .top(1000)
+                .list();
+        for (Iterator<Observation> it = entityList.fullIterator(); it.hasNext();) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
     public List<Observation> getObservationsForSource(Instant start, Instant end) throws ServiceFailureException {
         List<Observation> result = new ArrayList<>();
         if (hasSource()) {
@@ -184,6 +216,32 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
         return "";
     }
 
+    /**
+     * The key of the source of this combo, as "Datastreams(id)" or
+     * "MultiDatastreams(id)", matching {@link Utils.MessageInfo#sourceKey}.
+     *
+     * @return The key of the source, or an empty String if there is no source.
+     */
+    public String getSourceKey() {
+        if (sourceDs != null) {
+            return "Datastreams(" + sourceDs.getId().getUrl() + ")";
+        }
+        if (sourceMds != null) {
+            return "MultiDatastreams(" + sourceMds.getId().getUrl() + ")";
+        }
+        return "";
+    }
+
+    /**
+     * The mqtt path for the observations of the target of this combo. This is
+     * the same as the source path of combos that use this combo as source.
+     *
+     * @return The mqtt path for the observations of the target.
+     */
+    public String getTargetObsMqttPath() {
+        return "v1.0/MultiDatastreams(" + target.getId() + ")/Observations?$select=id,phenomenonTime";
+    }
+
     public List<Interval> calculateIntervalsForTime(TimeObject phenTime) {
         List<Interval> retval = new ArrayList<>();
         Instant phenTimeStart = Utils.getPhenTimeStart(phenTime);
@@ -210,19 +268,18 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
      * otherwise the current interval.
      */
     public Interval replaceIfNotCurrent(Interval other) {
-        if (currentInterval == null) {
-            // There is no interval yet. This happens the first time at startup.
-            currentInterval = other;
-            return null;
-        }
-        if (currentInterval.equals(other)) {
-            // The given interval is the same. Do nothing.
-            return null;
-        } else {
-            // The interval changed. Recalculate the old interval.
-            Interval old = currentInterval;
-            currentInterval = other;
-            return old;
+        while (true) {
+            Interval old = currentInterval.get();
+            if (other.equals(old)) {
+                // The given interval is the same. Do nothing.
+                return null;
+            }
+            if (currentInterval.compareAndSet(old, other)) {
+                // If old is null, there was no interval yet. This happens the
+                // first time at startup. Otherwise the interval changed, and
+                // the old interval must be recalculated.
+                return old;
+            }
         }
     }
 
@@ -235,20 +292,13 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
      * @return null if the given interval is the same as the current interval.
      */
     public Interval unsetCurrent(Interval other) {
-        if (currentInterval == null) {
-            // There is no interval.
-            return null;
-        }
-        if (currentInterval.equals(other)) {
-            // The given interval is the same. Do nothing.
-            currentInterval = null;
+        Interval old = currentInterval.getAndSet(null);
+        if (old == null || old.equals(other)) {
+            // There is no interval, or the given interval is the same.
             return null;
-        } else {
-            // The interval is different. Recalculate the old interval.
-            Interval old = currentInterval;
-            currentInterval = null;
-            return old;
         }
+        // The interval is different. Recalculate the old interval.
+        return old;
     }
 
     @Override
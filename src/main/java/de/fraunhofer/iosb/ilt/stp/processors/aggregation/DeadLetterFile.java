@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.processors.aggregation;
+
+import de.fraunhofer.iosb.ilt.stp.aggregation.Utils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.extra.Interval;
+
+/**
+ * A file that stores calculation orders that finally failed, so they can be
+ * re-injected later.
+ *
+ * Each line consists of the id of the target MultiDatastream, the start and
+ * end of the interval, and the reason of the failure, separated by tabs.
+ *
+ * @author scf
+ */
+public class DeadLetterFile {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterFile.class);
+
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Adds a failed order to the file.
+     *
+     * @param combo The combo of the failed order.
+     * @param interval The interval of the failed order.
+     * @param reason The reason the order failed.
+     */
+    public synchronized void add(AggregateCombo combo, Interval interval, String reason) {
+        String cleanReason = reason == null ? "" : reason.replaceAll("\\s+", " ");
+        String line = OrderJournal.targetIdFor(combo) + SEPARATOR + interval.getStart() + SEPARATOR + interval.getEnd() + SEPARATOR + cleanReason + "\n";
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), Utils.UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(line);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write to dead-letter file: {}", line, ex);
+        }
+    }
+
+    /**
+     * Passes all failed orders in the file to the given consumer, and removes
+     * them from the file.
+     *
+     * @param combosByTarget The combos, by the id of their target
+     * MultiDatastream, as given by {@link OrderJournal#targetIdFor(AggregateCombo)}.
+     * @param consumer The consumer to pass the failed orders to.
+     * @return The number of orders that were passed to the consumer.
+     */
+    public synchronized int takeAll(Map<String, AggregateCombo> combosByTarget, BiConsumer<AggregateCombo, Interval> consumer) {
+        if (!file.exists()) {
+            return 0;
+        }
+        // Move the file out of the way, so orders that fail again end up in a new file.
+        File taken = new File(file.getPath() + ".replay");
+        try {
+            Files.move(file.toPath(), taken.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to move dead-letter file.", ex);
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(taken.toPath(), Utils.UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(SEPARATOR);
+                if (parts.length < 3) {
+                    LOGGER.warn("Skipping invalid dead-letter line: {}", line);
+                    continue;
+                }
+                AggregateCombo combo = combosByTarget.get(parts[0]);
+                if (combo == null) {
+                    LOGGER.warn("Skipping dead-letter for unknown target: {}", line);
+                    continue;
+                }
+                try {
+                    consumer.accept(combo, Interval.of(Instant.parse(parts[1]), Instant.parse(parts[2])));
+                    count++;
+                } catch (DateTimeException ex) {
+                    LOGGER.warn("Skipping dead-letter line with invalid time: {}", line);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Failed to read dead-letter file.", ex);
+            return count;
+        }
+        try {
+            Files.delete(taken.toPath());
+        } catch (IOException ex) {
+            LOGGER.error("Failed to delete replayed dead-letter file.", ex);
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.processors.aggregation;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.StatusCodeException;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.stp.aggregation.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the Observations collection of a server over HTTP, for servers that
+ * do not offer MQTT. Each poll fetches the Observations with an id higher
+ * than a high-water mark, in pages ordered by id.
+ *
+ * The server assigns increasing ids, but concurrent transactions do not
+ * necessarily commit in id order. An Observation with a lower id can become
+ * visible after one with a higher id has been polled. To find those, each
+ * poll starts from the highest id that was seen at least one overlap window
+ * ago, instead of the highest id seen so far. Observations seen within the
+ * window are remembered, so each is passed on only once.
+ *
+ * The start of the window can be stored in a file, so that polling continues
+ * where it left off after a restart. Without a stored mark, polling starts
+ * after the newest Observation.
+ *
+ * @author scf
+ */
+public class ObservationPoller {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationPoller.class);
+
+    private static final String HTTPREQUEST_HEADER_ACCEPT = "Accept";
+    private static final String HTTPREQUEST_TYPE_JSON = "application/json";
+    private static final String SELECT = "$select=id,phenomenonTime";
+    private static final String EXPAND = "$expand=Datastream($select=id),MultiDatastream($select=id)";
+
+    private final SensorThingsService service;
+    private final File stateFile;
+    private final int pageSize;
+    private final long overlap;
+    /**
+     * The url form of the highest id seen so far, or null if there were no
+     * Observations yet.
+     */
+    private String lastId;
+    /**
+     * The value of lastId at the start of each poll in the overlap window,
+     * oldest first. The first mark is where the next poll starts.
+     */
+    private final Deque<Mark> marks = new ArrayDeque<>();
+    /**
+     * The ids seen after the first mark, with the time they were first seen.
+     */
+    private final Map<String, Long> seen = new HashMap<>();
+
+    /**
+     * Create a new ObservationPoller.
+     *
+     * @param service The service to poll.
+     * @param stateFile The file to store the high-water mark in, or null to
+     * not store it.
+     * @param pageSize The maximum number of Observations to fetch per request.
+     * @param overlap The number of milliseconds an Observation can take to
+     * become visible after Observations with a higher id.
+     */
+    public ObservationPoller(SensorThingsService service, File stateFile, int pageSize, long overlap) {
+        this.service = service;
+        this.stateFile = stateFile;
+        this.pageSize = pageSize;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Loads the stored high-water mark, or, if there is none, sets it to the
+     * newest Observation on the server. Observations newer than the mark are
+     * returned by the next poll.
+     *
+     * @throws ServiceFailureException If the server can not be queried.
+     */
+    public void open() throws ServiceFailureException {
+        if (stateFile != null && stateFile.exists()) {
+            try {
+                String stored = new String(Files.readAllBytes(stateFile.toPath()), Utils.UTF8).trim();
+                if (!stored.isEmpty()) {
+                    lastId = stored;
+                    marks.add(new Mark(System.currentTimeMillis(), lastId));
+                    LOGGER.info("Resuming polling after Observation {}.", lastId);
+                    return;
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Failed to read poll state file {}.", stateFile, ex);
+            }
+        }
+        List<Utils.MessageInfo> newest = new ArrayList<>();
+        fetch(buildUrl("$orderby=id%20desc&$top=1&$select=id"), newest);
+        if (!newest.isEmpty() && newest.get(0).id != null) {
+            lastId = newest.get(0).id.getUrl();
+        }
+        marks.add(new Mark(System.currentTimeMillis(), lastId));
+        LOGGER.info("Starting polling after Observation {}.", lastId);
+    }
+
+    /**
+     * Fetches all Observations added since the start of the overlap window,
+     * and passes those not seen before to the consumer, one page at a time.
+     * The start of the window is stored after the poll.
+     *
+     * @param consumer The consumer that handles each page of Observations.
+     * @return The number of new Observations found.
+     * @throws ServiceFailureException If the server can not be queried.
+     */
+    public long poll(Consumer<List<Utils.MessageInfo>> consumer) throws ServiceFailureException {
+        long now = System.currentTimeMillis();
+        String cursor = marks.getFirst().id;
+        boolean found = false;
+        long count = 0;
+        while (true) {
+            List<Utils.MessageInfo> page = new ArrayList<>();
+            fetch(buildPageUrl(cursor), page);
+            if (page.isEmpty()) {
+                break;
+            }
+            Utils.MessageInfo last = page.get(page.size() - 1);
+            if (last.id == null) {
+                throw new ServiceFailureException("Server returned Observations without id.");
+            }
+            List<Utils.MessageInfo> unseen = new ArrayList<>(page.size());
+            for (Utils.MessageInfo info : page) {
+                if (info.id != null && seen.putIfAbsent(info.id.getUrl(), now) == null) {
+                    unseen.add(info);
+                }
+            }
+            if (!unseen.isEmpty()) {
+                consumer.accept(unseen);
+                count += unseen.size();
+            }
+            cursor = last.id.getUrl();
+            found = true;
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        if (found) {
+            // The cursor only moves forward from the window start, so the last
+            // page ends with the highest id seen.
+            lastId = cursor;
+        }
+        slideWindow(now);
+        return count;
+    }
+
+    /**
+     * Adds a mark for the current poll, and drops the marks, and the seen ids,
+     * that are older than the overlap window.
+     *
+     * @param now The start time of the current poll.
+     */
+    private void slideWindow(long now) {
+        marks.add(new Mark(now, lastId));
+        long windowStart = now - overlap;
+        boolean moved = false;
+        while (marks.size() > 1) {
+            Iterator<Mark> it = marks.iterator();
+            it.next();
+            if (it.next().time > windowStart) {
+                break;
+            }
+            marks.removeFirst();
+            moved = true;
+        }
+        if (moved) {
+            // Ids seen before the first mark was taken are not higher than it,
+            // and are not returned by the next poll.
+            long firstTime = marks.getFirst().time;
+            seen.values().removeIf(t -> t < firstTime);
+            saveState();
+        }
+    }
+
+    private String buildPageUrl(String after) {
+        StringBuilder query = new StringBuilder();
+        if (after != null) {
+            query.append("$filter=").append(encode("id gt " + after)).append('&');
+        }
+        query.append("$orderby=id%20asc&$top=").append(pageSize)
+                .append('&').append(SELECT)
+                .append('&').append(EXPAND);
+        return buildUrl(query.toString());
+    }
+
+    private String buildUrl(String query) {
+        String base = service.getEndpoint().toString();
+        if (!base.endsWith("/")) {
+            base += "/";
+        }
+        return base + "Observations?" + query;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 not supported.", ex);
+        }
+    }
+
+    private void fetch(String url, List<Utils.MessageInfo> target) throws ServiceFailureException {
+        LOGGER.trace("Polling {}", url);
+        HttpGet get = new HttpGet(url);
+        get.setHeader(HTTPREQUEST_HEADER_ACCEPT, HTTPREQUEST_TYPE_JSON);
+        try (CloseableHttpResponse response = service.execute(get)) {
+            int code = response.getStatusLine().getStatusCode();
+            if (code != 200) {
+                String content = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), Utils.UTF8);
+                throw new StatusCodeException(url, code, response.getStatusLine().getReasonPhrase(), content);
+            }
+            try (InputStream content = response.getEntity().getContent()) {
+                // Paging is done on the id, the nextLink is not needed.
+                Utils.parseObservationList(content, target);
+            }
+        } catch (IOException ex) {
+            throw new ServiceFailureException("Failed to poll " + url, ex);
+        }
+    }
+
+    private void saveState() {
+        String windowStart = marks.getFirst().id;
+        if (stateFile == null || windowStart == null) {
+            return;
+        }
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), windowStart.getBytes(Utils.UTF8));
+            Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write poll state file {}.", stateFile, ex);
+        }
+    }
+
+    /**
+     * The highest id seen at the start of a poll.
+     */
+    private static class Mark {
+
+        final long time;
+        final String id;
+
+        Mark(long time, String id) {
+            this.time = time;
+            this.id = id;
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.processors.aggregation;
+
+import de.fraunhofer.iosb.ilt.stp.aggregation.Utils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.extra.Interval;
+
+/**
+ * An append-only journal of calculation orders, so that open orders survive a
+ * restart of the processor.
+ *
+ * Each line in the journal is a record, consisting of a type, the id of the
+ * target MultiDatastream, and the start and end of the interval, separated by
+ * tabs. Each queued order writes its own Q record, so an order that is queued
+ * while an order for the same interval is executing is not lost when the
+ * first one is done. The journal is periodically compacted, leaving only the
+ * open orders, and the latest complete interval calculated for each combo.
+ *
+ * @author scf
+ */
+public class OrderJournal {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrderJournal.class);
+
+    private static final String TYPE_QUEUED = "Q";
+    private static final String TYPE_DONE = "D";
+    private static final String TYPE_FAILED = "F";
+    private static final String SEPARATOR = "\t";
+    private static final long COMPACT_INTERVAL_SECONDS = 60;
+    private static final long COMPACT_MIN_RECORDS = 10000;
+
+    private final File file;
+    /**
+     * The number of orders that are queued but not done, by targetId and
+     * interval. Only changed while holding the lock on this journal, together
+     * with writing the record, so a compaction never sees a change that is
+     * not in the file yet, or the other way around.
+     */
+    private final Map<String, Integer> open = new ConcurrentHashMap<>();
+    /**
+     * The end of the latest calculated, complete interval, by targetId.
+     */
+    private final Map<String, Instant> checkpoints = new ConcurrentHashMap<>();
+
+    private Writer writer;
+    private long recordCount = 0;
+    private ScheduledExecutorService compactor;
+
+    public OrderJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the existing journal, if any, and opens it for appending.
+     *
+     * @throws IOException If the journal can not be read or written.
+     */
+    public synchronized void open() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        if (file.exists()) {
+            load();
+        }
+        compact();
+        compactor = Executors.newSingleThreadScheduledExecutor();
+        compactor.scheduleWithFixedDelay(this::maybeCompact, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("Opened order journal {} with {} open orders and {} checkpoints.", file, open.size(), checkpoints.size());
+    }
+
+    public synchronized void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            compact();
+            writer.close();
+        } catch (IOException ex) {
+            LOGGER.error("Failed to close order journal.", ex);
+        }
+        writer = null;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), Utils.UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(SEPARATOR);
+                if (parts.length != 4) {
+                    LOGGER.warn("Skipping invalid journal line: {}", line);
+                    continue;
+                }
+                try {
+                    Instant start = Instant.parse(parts[2]);
+                    Instant end = Instant.parse(parts[3]);
+                    String key = parts[1] + SEPARATOR + start + SEPARATOR + end;
+                    if (TYPE_QUEUED.equals(parts[0])) {
+                        open.merge(key, 1, Integer::sum);
+                    } else if (TYPE_DONE.equals(parts[0])) {
+                        close(key);
+                        advanceCheckpoint(parts[1], end);
+                    } else if (TYPE_FAILED.equals(parts[0])) {
+                        close(key);
+                    } else {
+                        LOGGER.warn("Skipping journal line with unknown type: {}", line);
+                    }
+                } catch (DateTimeException ex) {
+                    LOGGER.warn("Skipping journal line with invalid time: {}", line);
+                }
+            }
+        }
+    }
+
+    private void maybeCompact() {
+        synchronized (this) {
+            if (writer == null || recordCount < COMPACT_MIN_RECORDS + 2 * (open.size() + checkpoints.size())) {
+                return;
+            }
+            try {
+                compact();
+            } catch (IOException ex) {
+                LOGGER.error("Failed to compact order journal.", ex);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the open orders and the checkpoints.
+     */
+    private void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), Utils.UTF8)) {
+            for (Map.Entry<String, Instant> entry : checkpoints.entrySet()) {
+                Instant end = entry.getValue();
+                out.write(TYPE_DONE + SEPARATOR + entry.getKey() + SEPARATOR + end + SEPARATOR + end + "\n");
+            }
+            for (Map.Entry<String, Integer> entry : open.entrySet()) {
+                for (int i = 0; i < entry.getValue(); i++) {
+                    out.write(TYPE_QUEUED + SEPARATOR + entry.getKey() + "\n");
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordCount = open.values().stream().mapToLong(Integer::longValue).sum() + checkpoints.size();
+        writer = Files.newBufferedWriter(file.toPath(), Utils.UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        LOGGER.debug("Compacted order journal to {} records.", recordCount);
+    }
+
+    private synchronized void write(String type, String key) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(type + SEPARATOR + key + "\n");
+            writer.flush();
+            recordCount++;
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write to order journal.", ex);
+        }
+    }
+
+    /**
+     * Records that an order for the given combo and interval was queued. Each
+     * queued order must be followed by exactly one call to
+     * {@link #done(AggregateCombo, Interval)} or
+     * {@link #failed(AggregateCombo, Interval)}.
+     *
+     * @param combo The combo of the order.
+     * @param interval The interval of the order.
+     */
+    public synchronized void queued(AggregateCombo combo, Interval interval) {
+        String key = keyFor(combo, interval);
+        open.merge(key, 1, Integer::sum);
+        write(TYPE_QUEUED, key);
+    }
+
+    /**
+     * Records that an order for the given combo and interval was successfully
+     * calculated. The checkpoint of the combo only advances if the interval is
+     * complete, since the current interval will be calculated again.
+     *
+     * @param combo The combo of the order.
+     * @param interval The interval of the order.
+     */
+    public synchronized void done(AggregateCombo combo, Interval interval) {
+        String key = keyFor(combo, interval);
+        close(key);
+        advanceCheckpoint(targetIdFor(combo), interval.getEnd());
+        write(TYPE_DONE, key);
+    }
+
+    /**
+     * Removes one open order for the given key.
+     *
+     * @return true if there was an open order for the key.
+     */
+    private boolean close(String key) {
+        boolean[] found = {false};
+        open.computeIfPresent(key, (k, count) -> {
+            found[0] = true;
+            return count > 1 ? count - 1 : null;
+        });
+        return found[0];
+    }
+
+    private void advanceCheckpoint(String targetId, Instant end) {
+        if (end.isAfter(Instant.now())) {
+            return;
+        }
+        checkpoints.merge(targetId, end, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * Records that an order for the given combo and interval finally failed,
+     * and is no longer open.
+     *
+     * @param combo The combo of the order.
+     * @param interval The interval of the order.
+     */
+    public synchronized void failed(AggregateCombo combo, Interval interval) {
+        String key = keyFor(combo, interval);
+        if (close(key)) {
+            write(TYPE_FAILED, key);
+        }
+    }
+
+    /**
+     * Passes all open orders to the given consumer, once for each interval.
+     * The open orders are removed from the journal, the consumer is expected
+     * to queue them again, which records them anew.
+     *
+     * @param combosByTarget The combos, by the id of their target
+     * MultiDatastream, as given by {@link #targetIdFor(AggregateCombo)}.
+     * @param consumer The consumer to pass the open orders to.
+     * @return The number of open orders that were replayed.
+     */
+    public int replay(Map<String, AggregateCombo> combosByTarget, BiConsumer<AggregateCombo, Interval> consumer) {
+        int count = 0;
+        for (String key : open.keySet().toArray(new String[open.size()])) {
+            String[] parts = key.split(SEPARATOR);
+            AggregateCombo combo = combosByTarget.get(parts[0]);
+            synchronized (this) {
+                Integer openCount = open.remove(key);
+                for (int i = 0; openCount != null && i < openCount; i++) {
+                    write(TYPE_FAILED, key);
+                }
+            }
+            if (combo == null) {
+                LOGGER.warn("Dropping journaled order for unknown target {}.", parts[0]);
+                continue;
+            }
+            consumer.accept(combo, Interval.of(Instant.parse(parts[1]), Instant.parse(parts[2])));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks if the given combo is up-to-date, according to the journal. A
+     * combo is up-to-date if no interval ended after the end of the latest
+     * interval that was calculated for the combo.
+     *
+     * @param combo The combo to check.
+     * @param now The current time.
+     * @return true if the combo is up-to-date.
+     */
+    public boolean isCurrent(AggregateCombo combo, Instant now) {
+        Instant checkpoint = checkpoints.get(targetIdFor(combo));
+        if (checkpoint == null) {
+            return false;
+        }
+        ZonedDateTime nextEnd = checkpoint.atZone(combo.getZoneId()).plus(combo.level.amount, combo.level.unit);
+        return nextEnd.toInstant().isAfter(now);
+    }
+
+    public static String targetIdFor(AggregateCombo combo) {
+        return combo.target.getId().getUrl();
+    }
+
+    private static String keyFor(AggregateCombo combo, Interval interval) {
+        return targetIdFor(combo) + SEPARATOR + interval.getStart() + SEPARATOR + interval.getEnd();
+    }
+
+}
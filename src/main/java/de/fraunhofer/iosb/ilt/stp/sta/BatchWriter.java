@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.StatusCodeException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.stp.aggregation.Utils;
+import de.fraunhofer.iosb.ilt.stp.validator.Validator;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers new and updated Observations, and writes them as JSON batch
+ * requests, as defined by SensorThings API 1.1, from a dedicated sender
+ * thread. Each Observation is a separate request in the batch: a POST for new
+ * Observations, a PATCH for Observations that have an id.
+ *
+ * @author scf
+ */
+public class BatchWriter extends WriteBehindWriter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchWriter.class);
+    private static final String HTTPREQUEST_HEADER_ACCEPT = "Accept";
+    private static final String HTTPREQUEST_TYPE_JSON = "application/json";
+
+    private final AtomicInteger inserted;
+    private final AtomicInteger updated;
+
+    /**
+     * Create a new BatchWriter.
+     *
+     * @param service The service to write to.
+     * @param maxSize The number of buffered Observations that triggers a batch
+     * request.
+     * @param maxAge The maximum number of milliseconds an Observation is
+     * buffered.
+     * @param inserted The counter to add the number of created Observations
+     * to.
+     * @param updated The counter to add the number of updated Observations to.
+     * @param validator The validator that checks each batch before it is
+     * written.
+     * @param writtenListener Called with each Observation that was written,
+     * with its id set if the server returned it.
+     */
+    public BatchWriter(SensorThingsService service, int maxSize, long maxAge, AtomicInteger inserted, AtomicInteger updated, Validator validator, Consumer<Observation> writtenListener) {
+        super(service, "Batch-Sender", maxSize, maxAge, validator, writtenListener);
+        this.inserted = inserted;
+        this.updated = updated;
+    }
+
+    @Override
+    protected void write(List<Observation> batch) {
+        int count = batch.size();
+        String body;
+        try {
+            body = createBody(batch);
+        } catch (IOException ex) {
+            LOGGER.error("Dropped {} Observations, failed to serialise batch.", count, ex);
+            for (Observation obs : batch) {
+                failed(obs, ex);
+            }
+            return;
+        }
+        try {
+            JsonNode responses = post(body);
+            handleResponses(batch, responses);
+            LOGGER.debug("Sent batch of {} Observations.", count);
+        } catch (ServiceFailureException ex) {
+            // Not sent again: the server may have applied the batch before failing. The retry
+            // of each order is validated again, which turns applied creates into updates.
+            LOGGER.warn("Failed to send batch of {} Observations: {}", count, ex.getMessage());
+            for (Observation obs : batch) {
+                failed(obs, ex);
+            }
+        }
+    }
+
+    private String createBody(List<Observation> batch) throws IOException {
+        ObjectMapper mapper = ObjectMapperFactory.get();
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode requests = root.putArray("requests");
+        int i = 0;
+        for (Observation obs : batch) {
+            ObjectNode request = requests.addObject();
+            request.put("id", Integer.toString(i++));
+            if (obs.getId() == null) {
+                request.put("method", "post");
+                request.put("url", "Observations");
+            } else {
+                request.put("method", "patch");
+                request.put("url", "Observations(" + obs.getId().getUrl() + ")");
+            }
+            request.set("body", mapper.valueToTree(obs));
+        }
+        return mapper.writeValueAsString(root);
+    }
+
+    private JsonNode post(String body) throws ServiceFailureException {
+        String url = service.getEndpoint().toString();
+        if (!url.endsWith("/")) {
+            url += "/";
+        }
+        url += "$batch";
+        HttpPost post = new HttpPost(url);
+        post.setHeader(HTTPREQUEST_HEADER_ACCEPT, HTTPREQUEST_TYPE_JSON);
+        post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = service.execute(post)) {
+            int code = response.getStatusLine().getStatusCode();
+            String content = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), Utils.UTF8);
+            if (code != 200) {
+                throw new StatusCodeException(url, code, response.getStatusLine().getReasonPhrase(), content);
+            }
+            JsonNode responses = ObjectMapperFactory.get().readTree(content).get("responses");
+            if (responses == null || !responses.isArray()) {
+                throw new ServiceFailureException("Batch response has no responses.");
+            }
+            return responses;
+        } catch (IOException ex) {
+            throw new ServiceFailureException("Failed to send batch to " + url, ex);
+        }
+    }
+
+    private void handleResponses(List<Observation> batch, JsonNode responses) {
+        int errors = 0;
+        String firstError = null;
+        for (JsonNode response : responses) {
+            int index;
+            try {
+                index = Integer.parseInt(response.path("id").asText());
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (index < 0 || index >= batch.size()) {
+                continue;
+            }
+            Observation obs = batch.get(index);
+            int status = response.path("status").asInt();
+            if (status < 200 || status >= 300) {
+                errors++;
+                String error = status + " " + response.path("body");
+                if (firstError == null) {
+                    firstError = error;
+                }
+                failed(obs, new ServiceFailureException("Batch item failed: " + error));
+                continue;
+            }
+            if (obs.getId() == null) {
+                inserted.incrementAndGet();
+                created(obs, findHeader(response.path("headers"), "location"));
+            } else {
+                updated.incrementAndGet();
+                written(obs);
+            }
+        }
+        if (errors > 0) {
+            LOGGER.warn("Failed to write {} Observations in batch. First error: {}", errors, firstError);
+        }
+    }
+
+    private static String findHeader(JsonNode headers, String name) {
+        Iterator<Map.Entry<String, JsonNode>> it = headers.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> header = it.next();
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue().asText();
+            }
+        }
+        return null;
+    }
+
+}
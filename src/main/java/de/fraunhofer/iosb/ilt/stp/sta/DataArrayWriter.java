@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.stp.validator.Validator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers new Observations per (Multi)Datastream, and posts them as DataArray
+ * documents from a dedicated sender thread. Observations that the validator
+ * turned into updates of existing Observations are updated one by one.
+ *
+ * @author scf
+ */
+public class DataArrayWriter extends WriteBehindWriter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataArrayWriter.class);
+
+    private final AtomicInteger inserted;
+    private final AtomicInteger updated;
+
+    /**
+     * Create a new DataArrayWriter.
+     *
+     * @param service The service to post to.
+     * @param maxSize The number of buffered Observations that triggers a post.
+     * @param maxAge The maximum number of milliseconds an Observation is
+     * buffered.
+     * @param inserted The counter to add the number of inserted Observations
+     * to.
+     * @param updated The counter to add the number of updated Observations to.
+     * @param validator The validator that checks each batch before it is
+     * written.
+     * @param writtenListener Called with each Observation that was written,
+     * with its id set if the server returned it.
+     */
+    public DataArrayWriter(SensorThingsService service, int maxSize, long maxAge, AtomicInteger inserted, AtomicInteger updated, Validator validator, Consumer<Observation> writtenListener) {
+        super(service, "DataArray-Sender", maxSize, maxAge, validator, writtenListener);
+        this.inserted = inserted;
+        this.updated = updated;
+    }
+
+    @Override
+    protected void write(List<Observation> batch) {
+        Map<String, DataArrayValue> values = new LinkedHashMap<>();
+        int count = 0;
+        for (Observation obs : batch) {
+            if (obs.getId() != null) {
+                update(obs);
+                continue;
+            }
+            count++;
+            try {
+                Entity<?> ds = getTarget(obs);
+                values.computeIfAbsent(keyFor(ds), k -> createValue(ds, obs))
+                        .addObservation(obs);
+            } catch (ServiceFailureException ex) {
+                LOGGER.error("Dropped Observation without (Multi)Datastream.", ex);
+                failed(obs, ex);
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        DataArrayDocument dad = new DataArrayDocument();
+        dad.getValue().addAll(values.values());
+        try {
+            List<String> locations = service.create(dad);
+            long error = locations.stream().filter(
+                    location -> location.startsWith("error")
+            ).count();
+            if (error > 0) {
+                Optional<String> first = locations.stream().filter(location -> location.startsWith("error")).findFirst();
+                LOGGER.warn("Failed to insert {} Observations. First error: {}", error, first);
+            }
+            inserted.addAndGet((int) (locations.size() - error));
+            notifyWritten(values, locations);
+            LOGGER.debug("Posted {} Observations for {} Datastreams.", count, values.size());
+        } catch (ServiceFailureException ex) {
+            LOGGER.warn("Failed to post {} Observations as DataArray: {}", count, ex.getMessage());
+            for (DataArrayValue dav : values.values()) {
+                for (Observation obs : dav.getObservations()) {
+                    failed(obs, ex);
+                }
+            }
+        }
+    }
+
+    private void update(Observation obs) {
+        try {
+            service.update(obs);
+            updated.incrementAndGet();
+            written(obs);
+        } catch (ServiceFailureException ex) {
+            LOGGER.warn("Failed to update Observation {}: {}", obs.getId(), ex.getMessage());
+            failed(obs, ex);
+        }
+    }
+
+    /**
+     * Passes the inserted Observations to the listener. The locations are in
+     * the same order as the Observations in the document.
+     */
+    private void notifyWritten(Map<String, DataArrayValue> values, List<String> locations) {
+        Iterator<String> locationIt = locations.iterator();
+        for (DataArrayValue dav : values.values()) {
+            for (Observation obs : dav.getObservations()) {
+                if (!locationIt.hasNext()) {
+                    return;
+                }
+                String location = locationIt.next();
+                if (!location.startsWith("error")) {
+                    created(obs, location);
+                }
+            }
+        }
+    }
+
+    private static DataArrayValue createValue(Entity<?> ds, Observation o) {
+        if (ds instanceof Datastream) {
+            return new DataArrayValue((Datastream) ds, getDefinedProperties(o));
+        }
+        return new DataArrayValue((MultiDatastream) ds, getDefinedProperties(o));
+    }
+
+    private static Set<DataArrayValue.Property> getDefinedProperties(Observation o) {
+        Set<DataArrayValue.Property> value = new HashSet<>();
+        value.add(DataArrayValue.Property.Result);
+        if (o.getPhenomenonTime() != null) {
+            value.add(DataArrayValue.Property.PhenomenonTime);
+        }
+        if (o.getResultTime() != null) {
+            value.add(DataArrayValue.Property.ResultTime);
+        }
+        if (o.getResultQuality() != null) {
+            value.add(DataArrayValue.Property.ResultQuality);
+        }
+        if (o.getParameters() != null) {
+            value.add(DataArrayValue.Property.Parameters);
+        }
+        if (o.getValidTime() != null) {
+            value.add(DataArrayValue.Property.ValidTime);
+        }
+        return value;
+    }
+
+}
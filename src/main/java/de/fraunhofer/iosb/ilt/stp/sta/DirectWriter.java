@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.StatusCodeException;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.stp.validator.Validator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds new and updated Observations back for a short time, and then writes
+ * them one by one from a dedicated sender thread. Used for its coalescing,
+ * when the server does not support DataArrays or batch requests.
+ *
+ * @author scf
+ */
+public class DirectWriter extends WriteBehindWriter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectWriter.class);
+
+    private final AtomicInteger inserted;
+    private final AtomicInteger updated;
+
+    /**
+     * Create a new DirectWriter.
+     *
+     * @param service The service to write to.
+     * @param maxSize The number of buffered Observations that triggers a
+     * write.
+     * @param maxAge The maximum number of milliseconds an Observation is
+     * buffered.
+     * @param inserted The counter to add the number of created Observations
+     * to.
+     * @param updated The counter to add the number of updated Observations to.
+     * @param validator The validator that checks each batch before it is
+     * written.
+     * @param writtenListener Called with each Observation that was written,
+     * with its id set if the server returned it.
+     */
+    public DirectWriter(SensorThingsService service, int maxSize, long maxAge, AtomicInteger inserted, AtomicInteger updated, Validator validator, Consumer<Observation> writtenListener) {
+        super(service, "Coalesce-Sender", maxSize, maxAge, validator, writtenListener);
+        this.inserted = inserted;
+        this.updated = updated;
+    }
+
+    @Override
+    protected void write(List<Observation> batch) {
+        int failed = 0;
+        ServiceFailureException unreachable = null;
+        for (Observation obs : batch) {
+            if (unreachable != null) {
+                // The server is not reachable, do not wait for each Observation to fail.
+                failed(obs, unreachable);
+                failed++;
+                continue;
+            }
+            try {
+                write(obs);
+            } catch (StatusCodeException ex) {
+                LOGGER.debug("Failed to write Observation: {}", ex.getMessage());
+                failed(obs, ex);
+                failed++;
+            } catch (ServiceFailureException ex) {
+                unreachable = ex;
+                failed(obs, ex);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            LOGGER.warn("Failed to write {} of {} Observations.", failed, batch.size());
+        }
+        LOGGER.debug("Wrote {} Observations.", batch.size() - failed);
+    }
+
+    private void write(Observation obs) throws ServiceFailureException {
+        if (obs.getId() != null) {
+            service.update(obs);
+            updated.incrementAndGet();
+        } else {
+            service.create(obs);
+            inserted.incrementAndGet();
+        }
+        written(obs);
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message received over MQTT, independent of the MQTT version that was used
+ * to receive it.
+ *
+ * @author scf
+ */
+public class MqttMessage {
+
+    private final String topic;
+    private final byte[] payload;
+    private final AtomicInteger pendingAcks;
+    private final Runnable ack;
+
+    /**
+     * Create a new MqttMessage.
+     *
+     * @param topic The topic the message was received on.
+     * @param payload The payload of the message.
+     * @param pendingAcks The number of listeners that acknowledge the message
+     * themselves.
+     * @param ack Acknowledges the message to the broker.
+     */
+    public MqttMessage(String topic, byte[] payload, int pendingAcks, Runnable ack) {
+        this.topic = topic;
+        this.payload = payload;
+        this.pendingAcks = new AtomicInteger(pendingAcks);
+        this.ack = ack;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Acknowledges the message. Only for listeners that subscribed with
+     * manual acknowledgement. The message is acknowledged to the broker once
+     * all those listeners acknowledged it.
+     */
+    public void acknowledge() {
+        if (pendingAcks.decrementAndGet() == 0) {
+            ack.run();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.stp.validator.UpsertIndex;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Remembers a fingerprint of the last result written for recently used
+ * (Multi)Datastream and phenomenonTime pairs, so that writing the same result
+ * again can be skipped. The least recently used pairs are forgotten when the
+ * maximum size is reached.
+ *
+ * A fingerprint is only recorded once the write is confirmed. While an
+ * Observation for a pair is being written, the pair has no fingerprint, so
+ * that a result queued earlier can not suppress a newer one.
+ *
+ * @author scf
+ */
+public class ResultFingerprints {
+
+    private final int maxSize;
+    /**
+     * The fingerprints by pair. Also guards inFlight.
+     */
+    private final Map<String, Long> fingerprints;
+    /**
+     * The writes that are not confirmed yet, by pair.
+     */
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Create a new ResultFingerprints.
+     *
+     * @param maxSize The maximum number of fingerprints to keep.
+     */
+    public ResultFingerprints(int maxSize) {
+        this.maxSize = maxSize;
+        this.fingerprints = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > ResultFingerprints.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Checks if the last result written for the (Multi)Datastream and
+     * phenomenonTime of the given Observation is the same as its result. If
+     * so, it is counted as suppressed.
+     *
+     * @param obs The Observation to check.
+     * @return true if the same result was written last.
+     * @throws ServiceFailureException If the (Multi)Datastream of the
+     * Observation can not be determined.
+     */
+    public boolean isUnchanged(Observation obs) throws ServiceFailureException {
+        String key = WriteBehindWriter.keyFor(obs);
+        long hash = UpsertIndex.hashResult(obs.getResult());
+        Long last;
+        synchronized (fingerprints) {
+            last = fingerprints.get(key);
+        }
+        if (last != null && last == hash) {
+            suppressed.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the fingerprint of the (Multi)Datastream and phenomenonTime of
+     * the given Observation, until its write is confirmed.
+     *
+     * @param obs The Observation that is being written.
+     * @return The callback to pass the result of the write to. Records the
+     * fingerprint if the last Observation queued for the pair was written, and
+     * no older write for the pair completed after it.
+     * @throws ServiceFailureException If the (Multi)Datastream of the
+     * Observation can not be determined.
+     */
+    public BiConsumer<Boolean, Throwable> queued(Observation obs) throws ServiceFailureException {
+        String key = WriteBehindWriter.keyFor(obs);
+        long hash = UpsertIndex.hashResult(obs.getResult());
+        synchronized (fingerprints) {
+            fingerprints.remove(key);
+            InFlight writes = inFlight.computeIfAbsent(key, k -> new InFlight());
+            writes.count++;
+            writes.latest = obs;
+            writes.latestHash = hash;
+            writes.latestDone = false;
+            writes.latestWritten = false;
+        }
+        return (written, failure) -> completed(key, obs, failure == null && Boolean.TRUE.equals(written));
+    }
+
+    private void completed(String key, Observation obs, boolean written) {
+        synchronized (fingerprints) {
+            InFlight writes = inFlight.get(key);
+            if (writes == null) {
+                return;
+            }
+            if (writes.latest == obs) {
+                writes.latestDone = true;
+                writes.latestWritten = written;
+            } else if (written && writes.latestDone) {
+                // An older result may have overwritten the latest one.
+                writes.latestWritten = false;
+            }
+            if (--writes.count == 0) {
+                inFlight.remove(key);
+                if (writes.latestWritten) {
+                    fingerprints.put(key, writes.latestHash);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of Observations that were not written because their
+     * result was unchanged.
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * The unconfirmed writes for one (Multi)Datastream and phenomenonTime.
+     */
+    private static class InFlight {
+
+        int count;
+        Observation latest;
+        long latestHash;
+        boolean latestDone;
+        boolean latestWritten;
+    }
+
+}
@@ -18,49 +18,62 @@
 package de.fraunhofer.iosb.ilt.stp.sta;
 
 import com.google.gson.JsonElement;
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
 import com.hivemq.client.mqtt.MqttWebSocketConfig;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
 import com.hivemq.client.mqtt.mqtt3.Mqtt3AsyncClient;
 import com.hivemq.client.mqtt.mqtt3.Mqtt3Client;
 import com.hivemq.client.mqtt.mqtt3.Mqtt3ClientBuilder;
-import com.hivemq.client.mqtt.mqtt3.message.publish.Mqtt3Publish;
-import com.hivemq.client.mqtt.mqtt3.message.subscribe.suback.Mqtt3SubAck;
+import com.hivemq.client.mqtt.mqtt3.message.subscribe.Mqtt3Subscribe;
+import com.hivemq.client.mqtt.mqtt3.message.subscribe.Mqtt3Subscription;
 import com.hivemq.client.mqtt.mqtt3.message.subscribe.suback.Mqtt3SubAckReturnCode;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5Client;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5ClientBuilder;
+import com.hivemq.client.mqtt.mqtt5.lifecycle.Mqtt5ClientConnectedContext;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5Subscribe;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5Subscription;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.suback.Mqtt5SubAckReasonCode;
 import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
 import de.fraunhofer.iosb.ilt.configurable.ConfigEditor;
 import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
 import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorLong;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorString;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorSubclass;
 import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.sta.Utils;
-import de.fraunhofer.iosb.ilt.sta.model.Datastream;
-import de.fraunhofer.iosb.ilt.sta.model.Entity;
-import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
 import de.fraunhofer.iosb.ilt.sta.model.Thing;
-import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
-import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
 import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.stp.ProcessException;
+import de.fraunhofer.iosb.ilt.stp.utils.TopicTrie;
 import de.fraunhofer.iosb.ilt.stp.validator.Validator;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,6 +90,32 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
     private static final Logger LOGGER = LoggerFactory.getLogger(Service.class);
 
     private static final MqttQos DEFAULT_QOS = MqttQos.AT_LEAST_ONCE;
+    /**
+     * The maximum number of topics in one SUBSCRIBE packet.
+     */
+    private static final int SUBSCRIBE_BATCH_SIZE = 100;
+    /**
+     * The number of held back Observations that triggers a write, when using
+     * a coalesce window.
+     */
+    private static final int COALESCE_BUFFER_SIZE = 1000;
+    /**
+     * The maximum number of SUBSCRIBE packets in flight.
+     */
+    private static final int SUBSCRIBE_WINDOW = 10;
+    /**
+     * Log the resubscribe progress every this many packets.
+     */
+    private static final int SUBSCRIBE_LOG_BATCHES = 50;
+    /**
+     * The result of an Observation that was written directly.
+     */
+    private static final CompletableFuture<Boolean> WRITTEN = CompletableFuture.completedFuture(true);
+    /**
+     * The result of an Observation that was not written, because it is
+     * unchanged or invalid.
+     */
+    private static final CompletableFuture<Boolean> NOT_WRITTEN = CompletableFuture.completedFuture(false);
 
     @ConfigurableField(editor = EditorString.class,
             label = "Service URL", description = "The url of the server to aggregate for.")
@@ -93,6 +132,43 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
     @EditorString.EdOptsString(dflt = "http://localhost:8080/FROST-Server/v1.0")
     private String mqttId;
 
+    @ConfigurableField(editor = EditorString.class,
+            label = "MQTT Shared Group",
+            description = "If set, all subscriptions are shared subscriptions ($share/<group>/<topic>) in this group. "
+            + "The broker then spreads the messages over all clients in the group.",
+            optional = true)
+    @EditorString.EdOptsString(dflt = "")
+    private String mqttSharedGroup;
+
+    @ConfigurableField(editor = EditorBoolean.class,
+            label = "MQTT 5",
+            description = "Use MQTT 5 with a persistent session, instead of MQTT 3.1.1 with a clean session. "
+            + "The broker then keeps the subscriptions and queued messages across short disconnects.",
+            optional = true)
+    @EditorBoolean.EdOptsBool()
+    private boolean mqttVersion5;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "MQTT Session Expiry",
+            description = "MQTT 5 only: The number of seconds the broker keeps the session after a disconnect.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 300, min = 0, max = 4294967295L)
+    private long mqttSessionExpiry;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "MQTT Receive Maximum",
+            description = "MQTT 5 only: The maximum number of unacknowledged QoS 1 messages the broker may send us.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 1000, min = 1, max = 65535, step = 1)
+    private int mqttReceiveMaximum;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "MQTT Topic Alias Maximum",
+            description = "MQTT 5 only: The number of topic aliases the broker may use, so it does not have to send the full topic with each message.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 1000, min = 0, max = 65535, step = 1)
+    private int mqttTopicAliasMaximum;
+
     @ConfigurableField(editor = EditorSubclass.class,
             label = "Auth Method", description = "The authentication method the service uses.",
             optional = true)
@@ -104,10 +180,65 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
             label = "Use DataArrays",
             description = "Use the SensorThingsAPI DataArray extension to post Observations. "
             + "This is much more efficient when posting many observations. "
-            + "The number of items grouped together is determined by the messageInterval setting.")
+            + "Observations are buffered and posted from a separate thread, when Data Array Size or Data Array Age is reached.")
     @EditorBoolean.EdOptsBool()
     private boolean useDataArrays;
 
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Data Array Size",
+            description = "When using DataArrays, the number of buffered Observations that triggers a post.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 1000, min = 1, max = 999999, step = 1)
+    private int dataArraySize;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Data Array Age",
+            description = "When using DataArrays, the maximum number of milliseconds an Observation is buffered before it is posted.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 1000, min = 1, max = 999999)
+    private long dataArrayAge;
+
+    @ConfigurableField(editor = EditorBoolean.class,
+            label = "Use Batch Requests",
+            description = "Send new and updated Observations in JSON batch requests, as defined by SensorThings API 1.1. "
+            + "Observations are buffered and sent from a separate thread, when Batch Size or Batch Age is reached. "
+            + "Takes precedence over Use DataArrays.",
+            optional = true)
+    @EditorBoolean.EdOptsBool()
+    private boolean useBatch;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Batch Size",
+            description = "When using batch requests, the number of buffered Observations that triggers a batch request.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 100, min = 1, max = 9999, step = 1)
+    private int batchSize;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Batch Age",
+            description = "When using batch requests, the maximum number of milliseconds an Observation is buffered before it is sent.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 1000, min = 1, max = 999999)
+    private long batchAge;
+
+    @ConfigurableField(editor = EditorLong.class,
+            label = "Coalesce Window",
+            description = "When not using DataArrays or batch requests, the number of milliseconds Observations are held back before they are written. "
+            + "Of the Observations for the same (Multi)Datastream and phenomenonTime that arrive in this time, only the newest is written. "
+            + "DataArrays and batch requests always coalesce the Observations they buffer. 0 to write Observations directly.",
+            optional = true)
+    @EditorLong.EdOptsLong(dflt = 0, min = 0, max = 999999)
+    private long coalesceWindow;
+
+    @ConfigurableField(editor = EditorInt.class,
+            label = "Unchanged Result Cache",
+            description = "The number of recently written results to remember, by (Multi)Datastream and phenomenonTime. "
+            + "An Observation with the same result as the last one written for its (Multi)Datastream and phenomenonTime is not written again. "
+            + "0 to disable.",
+            optional = true)
+    @EditorInt.EdOptsInt(dflt = 10000, min = 0, max = 9999999, step = 1)
+    private int fingerprintCacheSize;
+
     @ConfigurableField(editor = EditorSubclass.class,
             label = "Validator", description = "The validator to use.",
             optional = true)
@@ -117,19 +248,55 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
 
     private SensorThingsService service;
     private boolean noAct = false;
+    /**
+     * The fingerprints of recently written results, or null if disabled.
+     */
+    private ResultFingerprints fingerprints;
 
-    private final Map<Entity, DataArrayValue> davMap = new HashMap<>();
-
-    private Entity lastDatastream;
-
-    private DataArrayValue lastDav;
+    /**
+     * Buffers and sends the Observations, when using DataArrays, batch
+     * requests or a coalesce window.
+     */
+    private WriteBehindWriter writer;
 
-    private int inserted = 0;
-    private int updated = 0;
+    private final AtomicInteger inserted = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    /**
+     * The number of coalesced Observations of closed writers.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
     private String clientId;
-    private Mqtt3AsyncClient client;
+    /**
+     * The client, when using MQTT 3.1.1.
+     */
+    private Mqtt3AsyncClient client3;
+    /**
+     * The client, when using MQTT 5.
+     */
+    private Mqtt5AsyncClient client5;
+
+    /**
+     * The listeners by topic filter. Incoming messages are matched against
+     * the filters without locking.
+     */
+    private final TopicTrie<Consumer<MqttMessage>> mqttSubscriptions = new TopicTrie<>();
+    /**
+     * The listeners that acknowledge their messages themselves.
+     */
+    private final Set<Consumer<MqttMessage>> manualAckListeners = ConcurrentHashMap.newKeySet();
+    /**
+     * The topics that are subscribed in the current MQTT 5 session.
+     */
+    private final Set<String> sessionTopics = ConcurrentHashMap.newKeySet();
+    /**
+     * The executor that runs the message listeners, so that listeners that
+     * block do not block the network threads of the mqtt client.
+     */
+    private ExecutorService callbackExecutor;
 
-    private final Map<String, List<Consumer<Mqtt3Publish>>> mqttSubscriptions = new HashMap<>();
+    private final List<Consumer<Instant>> reconnectListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean wasConnected = false;
+    private volatile Instant disconnectedAt;
 
     @Override
     public void configure(JsonElement config, SensorThingsService context, Object edtCtx, ConfigEditor<?> configEditor) throws ConfigurationException {
@@ -153,6 +320,9 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
         if (validator == null) {
             validator = new Validator.ValidatorNull();
         }
+        if (fingerprintCacheSize > 0) {
+            fingerprints = new ResultFingerprints(fingerprintCacheSize);
+        }
     }
 
     public String getClientId() {
@@ -165,109 +335,400 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
         return clientId;
     }
 
-    public synchronized Mqtt3AsyncClient getMqttClient() throws URISyntaxException {
-        if (client == null) {
+    public synchronized MqttClient getMqttClient() throws URISyntaxException {
+        if (client3 == null && client5 == null) {
             String myClientId = getClientId();
             URI url = new URI(mqttUrl);
-            LOGGER.info("Connecting to {} using clientId {}.", mqttUrl, myClientId);
-            Mqtt3ClientBuilder builder = Mqtt3Client.builder()
-                    .identifier(myClientId)
-                    .serverHost(url.getHost())
-                    .serverPort(url.getPort())
-                    .addConnectedListener((context) -> {
-                        resubscribeAll();
-                    })
-                    .addDisconnectedListener((context) -> {
-                        LOGGER.info("connectionLost");
-                    });
-            if (mqttUrl.startsWith("tcps") || mqttUrl.startsWith("wss")) {
-                builder = builder.sslWithDefaultConfig();
+            LOGGER.info("Connecting to {} using clientId {} and MQTT {}.", mqttUrl, myClientId, mqttVersion5 ? "5" : "3.1.1");
+            if (callbackExecutor == null) {
+                callbackExecutor = Executors.newSingleThreadExecutor((Runnable r) -> new Thread(r, "MQTT-Callback"));
             }
-            if (mqttUrl.startsWith("ws")) {
-                builder = builder.webSocketConfig(MqttWebSocketConfig.builder().serverPath(url.getPath()).build());
+            if (mqttVersion5) {
+                createClient5(myClientId, url);
+            } else {
+                createClient3(myClientId, url);
             }
-            client = builder.buildAsync();
-            client.connect();
         }
-        return client;
+        if (client5 != null) {
+            return client5;
+        }
+        return client3;
+    }
+
+    private void createClient3(String myClientId, URI url) {
+        Mqtt3ClientBuilder builder = Mqtt3Client.builder()
+                .identifier(myClientId)
+                .serverHost(url.getHost())
+                .serverPort(url.getPort())
+                .automaticReconnectWithDefaultConfig()
+                .addConnectedListener((context) -> {
+                    // Mqtt 3 connects with a clean session, all subscriptions are lost.
+                    connected(false, false);
+                })
+                .addDisconnectedListener((context) -> {
+                    disconnected();
+                });
+        if (mqttUrl.startsWith("tcps") || mqttUrl.startsWith("wss")) {
+            builder = builder.sslWithDefaultConfig();
+        }
+        if (mqttUrl.startsWith("ws")) {
+            builder = builder.webSocketConfig(MqttWebSocketConfig.builder().serverPath(url.getPath()).build());
+        }
+        client3 = builder.buildAsync();
+        client3.publishes(MqttGlobalPublishFilter.ALL,
+                (publish) -> messageArrived(publish.getTopic().toString(), publish.getPayloadAsBytes(), publish::acknowledge),
+                callbackExecutor,
+                true);
+        client3.connect();
+    }
+
+    /**
+     * Creates an MQTT 5 client with a persistent session. The client
+     * reconnects automatically. When the broker still has our session, the
+     * subscriptions do not have to be sent again; when the session expired,
+     * the client resubscribes by itself.
+     */
+    private void createClient5(String myClientId, URI url) {
+        Mqtt5ClientBuilder builder = Mqtt5Client.builder()
+                .identifier(myClientId)
+                .serverHost(url.getHost())
+                .serverPort(url.getPort())
+                .automaticReconnectWithDefaultConfig()
+                .addConnectedListener((context) -> {
+                    boolean sessionPresent = context instanceof Mqtt5ClientConnectedContext
+                            && ((Mqtt5ClientConnectedContext) context).getConnAck().isSessionPresent();
+                    connected(true, sessionPresent);
+                })
+                .addDisconnectedListener((context) -> {
+                    disconnected();
+                });
+        if (mqttUrl.startsWith("tcps") || mqttUrl.startsWith("wss")) {
+            builder = builder.sslWithDefaultConfig();
+        }
+        if (mqttUrl.startsWith("ws")) {
+            builder = builder.webSocketConfig(MqttWebSocketConfig.builder().serverPath(url.getPath()).build());
+        }
+        client5 = builder.buildAsync();
+        client5.publishes(MqttGlobalPublishFilter.ALL,
+                (publish) -> messageArrived(publish.getTopic().toString(), publish.getPayloadAsBytes(), publish::acknowledge),
+                callbackExecutor,
+                true);
+        client5.connectWith()
+                .cleanStart(false)
+                .sessionExpiryInterval(mqttSessionExpiry)
+                .restrictions()
+                .receiveMaximum(mqttReceiveMaximum)
+                .topicAliasMaximum(mqttTopicAliasMaximum)
+                .applyRestrictions()
+                .send()
+                .thenAccept((connAck) -> {
+                    LOGGER.info("Connected, session present: {}", connAck.isSessionPresent());
+                });
+    }
+
+    private boolean isConnected() {
+        if (client5 != null) {
+            return client5.getState().isConnected();
+        }
+        return client3 != null && client3.getState().isConnected();
     }
 
     public synchronized void closeMqttClient() {
         LOGGER.info("Unsubscribing all topics...");
         unsubscribeAll();
-        if (client == null) {
+        if (client3 == null && client5 == null) {
             return;
         }
-        if (client.getState().isConnected()) {
+        if (isConnected()) {
             LOGGER.info("Stopping MQTT client...");
-            client.disconnect();
+            if (client5 != null) {
+                client5.disconnect();
+            } else {
+                client3.disconnect();
+            }
         } else {
             LOGGER.info("MQTT client already stopped.");
         }
-        client = null;
-    }
-
-    private void resubscribeAll() {
-        LOGGER.info("Resubscribing all topics...");
-        int total = 0;
-        int failed = 0;
-        List<CompletableFuture<Mqtt3SubAck>> futures = new ArrayList<>();
-        for (Map.Entry<String, List<Consumer<Mqtt3Publish>>> entry : mqttSubscriptions.entrySet()) {
-            String topic = entry.getKey();
-            List<Consumer<Mqtt3Publish>> listeners = entry.getValue();
-            for (Consumer<Mqtt3Publish> listener : listeners) {
-                futures.add(
-                        client.subscribeWith().topicFilter(topic).qos(DEFAULT_QOS).callback(listener).send()
-                );
-                total++;
+        client3 = null;
+        client5 = null;
+        sessionTopics.clear();
+        wasConnected = false;
+        disconnectedAt = null;
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdownNow();
+            callbackExecutor = null;
+        }
+    }
+
+    /**
+     * Passes a received message to the listeners of all topic filters that
+     * match its topic. If no listener acknowledges the message itself, it is
+     * acknowledged directly.
+     */
+    private void messageArrived(String topic, byte[] payload, Runnable ack) {
+        List<Consumer<MqttMessage>> listeners = mqttSubscriptions.match(topic);
+        if (listeners.isEmpty()) {
+            LOGGER.trace("No listeners for topic {}", topic);
+            ack.run();
+            return;
+        }
+        int manualCount = 0;
+        for (Consumer<MqttMessage> listener : listeners) {
+            if (manualAckListeners.contains(listener)) {
+                manualCount++;
             }
         }
-        for (CompletableFuture<Mqtt3SubAck> future : futures) {
+        MqttMessage message = new MqttMessage(topic, payload, manualCount, ack);
+        for (Consumer<MqttMessage> listener : listeners) {
             try {
-                for (Mqtt3SubAckReturnCode item : future.get().getReturnCodes()) {
-                    if (item.isError()) {
-                        LOGGER.error("Failed to re-subscripe to topic: {}", item);
-                        failed++;
-                    }
+                listener.accept(message);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Exception in listener for topic {}", topic, ex);
+            }
+        }
+        if (manualCount == 0) {
+            ack.run();
+        }
+    }
+
+    /**
+     * (Re)subscribes the topics, on a separate thread, so the thread calling
+     * this (usually the event thread of the client) is not blocked.
+     *
+     * @param onlyNew If true, only topics that are not yet subscribed in the
+     * current session are subscribed.
+     */
+    private void resubscribeAllAsync(boolean onlyNew, Instant gapStart) {
+        Thread thread = new Thread(() -> {
+            resubscribeAll(onlyNew);
+            if (gapStart != null) {
+                notifyReconnectListeners(gapStart);
+            }
+        }, "MQTT-Resubscribe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param onlyNew If true, only topics that are not yet subscribed in the
+     * current session are subscribed.
+     * @param sessionPresent If true, the broker kept our session, and queued
+     * the messages published while we were disconnected, so nothing was
+     * missed.
+     */
+    private void connected(boolean onlyNew, boolean sessionPresent) {
+        Instant gapStart = disconnectedAt;
+        disconnectedAt = null;
+        wasConnected = true;
+        if (sessionPresent && gapStart != null) {
+            LOGGER.info("Reconnected with session present, no messages missed since {}.", gapStart);
+            gapStart = null;
+        }
+        resubscribeAllAsync(onlyNew, gapStart);
+    }
+
+    private void disconnected() {
+        LOGGER.info("connectionLost");
+        if (wasConnected && disconnectedAt == null) {
+            disconnectedAt = Instant.now();
+        }
+    }
+
+    private void notifyReconnectListeners(Instant gapStart) {
+        LOGGER.info("Reconnected after a disconnect at {}.", gapStart);
+        for (Consumer<Instant> listener : reconnectListeners) {
+            try {
+                listener.accept(gapStart);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Exception in reconnect listener.", ex);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is called after the client reconnected and
+     * resubscribed, after a connection loss. The listener gets the time the
+     * connection was lost. Messages published in the meantime may have been
+     * lost.
+     *
+     * @param listener The listener to add.
+     */
+    public void addReconnectListener(Consumer<Instant> listener) {
+        reconnectListeners.add(listener);
+    }
+
+    public void removeReconnectListener(Consumer<Instant> listener) {
+        reconnectListeners.remove(listener);
+    }
+
+    /**
+     * (Re)subscribes the topics. The topics are packed into SUBSCRIBE packets
+     * of up to SUBSCRIBE_BATCH_SIZE topics, and up to SUBSCRIBE_WINDOW packets
+     * are in flight at the same time.
+     *
+     * @param onlyNew If true, only topics that are not yet subscribed in the
+     * current session are subscribed.
+     */
+    private void resubscribeAll(boolean onlyNew) {
+        List<String> topics = new ArrayList<>();
+        for (String topic : mqttSubscriptions.getFilters()) {
+            if (!onlyNew || !sessionTopics.contains(topic)) {
+                topics.add(topic);
+            }
+        }
+        int total = topics.size();
+        LOGGER.info("Resubscribing {} {} topics...", total, onlyNew ? "new" : "");
+        Semaphore window = new Semaphore(SUBSCRIBE_WINDOW);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger lastLogged = new AtomicInteger();
+        int logStep = SUBSCRIBE_BATCH_SIZE * SUBSCRIBE_LOG_BATCHES;
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < total; i += SUBSCRIBE_BATCH_SIZE) {
+                List<String> batch = topics.subList(i, Math.min(total, i + SUBSCRIBE_BATCH_SIZE));
+                window.acquire();
+                if (!isConnected()) {
+                    window.release();
+                    LOGGER.warn("Connection lost while resubscribing, after {} of {} topics.", done.get(), total);
+                    return;
                 }
-            } catch (InterruptedException | ExecutionException exc) {
-                LOGGER.error("Failed to re-subscripe to topic: {}", exc.getMessage());
-                failed++;
+                sendSubscribe(batch).whenComplete((failedCount, exc) -> {
+                    if (exc != null) {
+                        LOGGER.error("Failed to re-subscribe to {} topics: {}", batch.size(), exc.getMessage());
+                        failed.addAndGet(batch.size());
+                    } else {
+                        failed.addAndGet(failedCount);
+                    }
+                    int newDone = done.addAndGet(batch.size());
+                    int logged = lastLogged.get();
+                    if (newDone - logged >= logStep && newDone < total && lastLogged.compareAndSet(logged, newDone)) {
+                        LOGGER.info("Resubscribed {} of {} topics...", newDone, total);
+                    }
+                    window.release();
+                });
             }
+            window.acquire(SUBSCRIBE_WINDOW);
+        } catch (InterruptedException exc) {
+            LOGGER.warn("Interrupted while resubscribing.");
+            Thread.currentThread().interrupt();
         }
-        LOGGER.info("Resubscribed to {} topics, failed: {}...", total, failed);
+        LOGGER.info("Resubscribed to {} topics in {}ms, failed: {}.", done.get(), System.currentTimeMillis() - start, failed.get());
     }
 
     public synchronized void unsubscribeAll() {
-        String[] topics = mqttSubscriptions.keySet().toArray(new String[0]);
+        String[] topics = mqttSubscriptions.getFilters().toArray(new String[0]);
         for (String topic : topics) {
             removeSubscriptions(topic);
         }
     }
 
-    private List<Consumer<Mqtt3Publish>> getSubscriptionListForTopic(String topic) {
-        List<Consumer<Mqtt3Publish>> listeners = mqttSubscriptions.get(topic);
-        if (listeners == null) {
-            listeners = new ArrayList<>();
-            mqttSubscriptions.put(topic, listeners);
+    public synchronized void removeSubscriptions(String topic) {
+        manualAckListeners.removeAll(mqttSubscriptions.remove(topic));
+        sessionTopics.remove(topic);
+        if (!isConnected()) {
+            return;
+        }
+        if (client5 != null) {
+            client5.unsubscribeWith().addTopicFilter(toTopicFilter(topic)).send();
+        } else {
+            client3.unsubscribeWith().addTopicFilter(toTopicFilter(topic)).send();
         }
-        return listeners;
     }
 
-    public synchronized void removeSubscriptions(String topic) {
-        mqttSubscriptions.remove(topic);
-        if (client == null || !client.getState().isConnected()) {
+    public synchronized void subscribe(String topic, Consumer<MqttMessage> messageListener) {
+        subscribe(topic, messageListener, false);
+    }
+
+    /**
+     * Subscribe to the given topic.
+     *
+     * If manualAck is true, the listener must call
+     * {@link MqttMessage#acknowledge()} on each message once it is handled.
+     * Until then, the message counts against the in-flight window of the
+     * broker, so a listener that falls behind slows down the broker instead of
+     * losing messages.
+     *
+     * @param topic The topic filter to subscribe to. May contain the MQTT
+     * wildcards + and #.
+     * @param messageListener The listener to pass the messages to.
+     * @param manualAck Flag indicating the listener acknowledges the messages
+     * itself.
+     */
+    public synchronized void subscribe(String topic, Consumer<MqttMessage> messageListener, boolean manualAck) {
+        if (manualAck) {
+            manualAckListeners.add(messageListener);
+        }
+        boolean newTopic = mqttSubscriptions.add(topic, messageListener);
+        if (!newTopic || !isConnected()) {
             return;
         }
-        client.unsubscribeWith().addTopicFilter(topic).send();
+        sendSubscribe(Collections.singletonList(topic));
     }
 
-    public synchronized void subscribe(String topic, Consumer<Mqtt3Publish> messageListener) {
-        getSubscriptionListForTopic(topic).add(messageListener);
-        if (client == null || !client.getState().isConnected()) {
-            return;
+    /**
+     * Sends one subscribe packet for the given topics. Messages are dispatched
+     * to the listeners by the global publish callback.
+     *
+     * @param topics The topics to subscribe to.
+     * @return A future that completes with the number of topics that could not
+     * be subscribed.
+     */
+    private CompletableFuture<Integer> sendSubscribe(List<String> topics) {
+        if (client5 != null) {
+            List<Mqtt5Subscription> subscriptions = new ArrayList<>(topics.size());
+            for (String topic : topics) {
+                subscriptions.add(Mqtt5Subscription.builder().topicFilter(toTopicFilter(topic)).qos(DEFAULT_QOS).build());
+            }
+            sessionTopics.addAll(topics);
+            return client5.subscribe(Mqtt5Subscribe.builder().addSubscriptions(subscriptions).build())
+                    .thenApply((subAck) -> {
+                        int failed = 0;
+                        List<Mqtt5SubAckReasonCode> codes = subAck.getReasonCodes();
+                        for (int i = 0; i < codes.size(); i++) {
+                            if (codes.get(i).isError()) {
+                                LOGGER.error("Failed to subscribe to topic {}: {}", topics.get(i), codes.get(i));
+                                sessionTopics.remove(topics.get(i));
+                                failed++;
+                            }
+                        }
+                        return failed;
+                    });
+        }
+        List<Mqtt3Subscription> subscriptions = new ArrayList<>(topics.size());
+        for (String topic : topics) {
+            subscriptions.add(Mqtt3Subscription.builder().topicFilter(toTopicFilter(topic)).qos(DEFAULT_QOS).build());
+        }
+        return client3.subscribe(Mqtt3Subscribe.builder().addSubscriptions(subscriptions).build())
+                .thenApply((subAck) -> {
+                    int failed = 0;
+                    List<Mqtt3SubAckReturnCode> codes = subAck.getReturnCodes();
+                    for (int i = 0; i < codes.size(); i++) {
+                        if (codes.get(i).isError()) {
+                            LOGGER.error("Failed to subscribe to topic {}: {}", topics.get(i), codes.get(i));
+                            failed++;
+                        }
+                    }
+                    return failed;
+                });
+    }
+
+    /**
+     * Turns the given topic into the filter to subscribe to, by adding the
+     * shared subscription prefix if a shared group is configured.
+     *
+     * @param topic The topic to subscribe to.
+     * @return The topic filter.
+     */
+    private String toTopicFilter(String topic) {
+        if (Utils.isNullOrEmpty(mqttSharedGroup)) {
+            return topic;
         }
-        client.subscribeWith().topicFilter(topic).qos(DEFAULT_QOS).callback(messageListener).send();
+        return "$share/" + mqttSharedGroup + "/" + topic;
+    }
+
+    public boolean isSharedSubscriptions() {
+        return !Utils.isNullOrEmpty(mqttSharedGroup);
     }
 
     public void setNoAct(boolean noAct) {
@@ -275,99 +736,213 @@ public class Service implements AnnotatedConfigurable<SensorThingsService, Objec
     }
 
     public int getInserted() {
-        return inserted;
+        return inserted.get();
     }
 
     public int getUpdated() {
-        return updated;
+        return updated.get();
     }
 
-    public void addObservation(Observation obs) throws ServiceFailureException, ProcessException {
-        if (!validator.isValid(obs)) {
-            return;
+    /**
+     * @return The number of Observations that were not written, because a
+     * newer Observation for the same (Multi)Datastream and phenomenonTime
+     * replaced them before they were sent.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced.get() + (writer == null ? 0 : writer.getCoalesced());
+    }
+
+    /**
+     * @return The number of Observations that were not written, because the
+     * same result was the last one written for their (Multi)Datastream and
+     * phenomenonTime.
+     */
+    public long getSuppressed() {
+        return fingerprints == null ? 0 : fingerprints.getSuppressed();
+    }
+
+    /**
+     * Validates the given observation, and if it is valid, writes it to the
+     * service.
+     *
+     * @param obs The observation to write.
+     * @return true if the observation was written, or queued for writing.
+     * @throws ServiceFailureException If writing the observation failed.
+     * @throws ProcessException If validating the observation failed.
+     */
+    public boolean addObservation(Observation obs) throws ServiceFailureException, ProcessException {
+        return addObservationAsync(obs) != NOT_WRITTEN;
+    }
+
+    /**
+     * Validates the given observation, and if it is valid, writes it to the
+     * service. When Observations are buffered, the write happens later, on the
+     * sender thread of the write buffer, and the observation is validated
+     * together with the rest of its batch.
+     *
+     * @param obs The observation to write.
+     * @return A future that completes with true when the observation is
+     * written, with false if it was not written because it is unchanged or
+     * invalid, or exceptionally if writing it failed.
+     * @throws ServiceFailureException If writing the observation failed.
+     * @throws ProcessException If validating the observation failed.
+     */
+    public CompletableFuture<Boolean> addObservationAsync(Observation obs) throws ServiceFailureException, ProcessException {
+        if (fingerprints != null && fingerprints.isUnchanged(obs)) {
+            LOGGER.trace("Result for {} unchanged, not writing.", obs.getPhenomenonTime());
+            return NOT_WRITTEN;
+        }
+        if (!isBuffered(obs) && !validator.isValid(obs)) {
+            return NOT_WRITTEN;
         }
-        if (obs.getId() != null && !noAct) {
-            service.update(obs);
-            updated++;
-        } else if (!useDataArrays && !noAct) {
-            service.create(obs);
-            inserted++;
-        } else if (useDataArrays) {
-            addToDataArray(obs);
+        if (noAct) {
+            return NOT_WRITTEN;
         }
+        return write(obs);
     }
 
-    private void addToDataArray(Observation obs) throws ServiceFailureException, ProcessException {
-        if (!validator.isValid(obs)) {
-            return;
+    /**
+     * Validates the given observations as one set, and writes the valid ones
+     * to the service. Validators can check a set of observations with fewer
+     * requests than each observation on its own, which makes this faster for
+     * many observations of the same (Multi)Datastream, like a backfill. When
+     * Observations are buffered, the write buffer validates each batch as a
+     * set instead.
+     *
+     * @param observations The observations to write.
+     * @return The result of each observation, in the given order, as
+     * described for {@link #addObservationAsync(Observation)}.
+     * @throws ServiceFailureException If writing an observation failed.
+     * @throws ProcessException If validating the observations failed.
+     */
+    public List<CompletableFuture<Boolean>> addObservations(List<Observation> observations) throws ServiceFailureException, ProcessException {
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(Collections.nCopies(observations.size(), NOT_WRITTEN));
+        if (noAct) {
+            return results;
+        }
+        Set<Observation> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Observation> unbuffered = new ArrayList<>();
+        for (Observation obs : observations) {
+            if (fingerprints != null && fingerprints.isUnchanged(obs)) {
+                skipped.add(obs);
+            } else if (!isBuffered(obs)) {
+                unbuffered.add(obs);
+            }
+        }
+        if (!unbuffered.isEmpty()) {
+            skipped.addAll(unbuffered);
+            for (Observation obs : validator.validate(unbuffered)) {
+                skipped.remove(obs);
+            }
         }
-        Entity ds = obs.getDatastream();
-        if (ds == null) {
-            ds = obs.getMultiDatastream();
+        for (int i = 0; i < observations.size(); i++) {
+            Observation obs = observations.get(i);
+            if (!skipped.contains(obs)) {
+                results.set(i, write(obs));
+            }
         }
-        if (ds == null) {
-            throw new IllegalArgumentException("Observation must have a (Multi)Datastream.");
+        return results;
+    }
+
+    /**
+     * @param obs The Observation to check.
+     * @return true if the Observation goes through the write buffer.
+     */
+    private boolean isBuffered(Observation obs) {
+        return useBatch || (useDataArrays && obs.getId() == null) || (!useDataArrays && coalesceWindow > 0);
+    }
+
+    private CompletableFuture<Boolean> write(Observation obs) throws ServiceFailureException, ProcessException {
+        if (fingerprints == null) {
+            return send(obs);
         }
-        if (ds != lastDatastream) {
-            findDataArrayValue(ds, obs);
+        // The fingerprint is recorded once the write is confirmed.
+        BiConsumer<Boolean, Throwable> recorder = fingerprints.queued(obs);
+        CompletableFuture<Boolean> result;
+        try {
+            result = send(obs);
+        } catch (ServiceFailureException | ProcessException | RuntimeException ex) {
+            recorder.accept(false, ex);
+            throw ex;
         }
-        lastDav.addObservation(obs);
+        result.whenComplete(recorder);
+        return result;
     }
 
-    private void findDataArrayValue(Entity ds, Observation o) {
-        DataArrayValue dav = davMap.get(ds);
-        if (dav == null) {
-            if (ds instanceof Datastream) {
-                dav = new DataArrayValue((Datastream) ds, getDefinedProperties(o));
-            } else {
-                dav = new DataArrayValue((MultiDatastream) ds, getDefinedProperties(o));
+    private CompletableFuture<Boolean> send(Observation obs) throws ServiceFailureException, ProcessException {
+        CompletableFuture<Boolean> result;
+        if (isBuffered(obs)) {
+            try {
+                result = getWriter().add(obs);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("Interrupted while waiting for the write buffer.", ex);
             }
-            davMap.put(ds, dav);
-        }
-        lastDav = dav;
-        lastDatastream = ds;
-    }
-
-    public int sendDataArray() throws ServiceFailureException {
-        if (!noAct && !davMap.isEmpty()) {
-            DataArrayDocument dad = new DataArrayDocument();
-            dad.getValue().addAll(davMap.values());
-            List<String> locations = service.create(dad);
-            long error = locations.stream().filter(
-                    location -> location.startsWith("error")
-            ).count();
-            if (error > 0) {
-                Optional<String> first = locations.stream().filter(location -> location.startsWith("error")).findFirst();
-                LOGGER.warn("Failed to insert {} Observations. First error: {}", error, first);
+        } else {
+            try {
+                if (obs.getId() != null) {
+                    service.update(obs);
+                    updated.incrementAndGet();
+                } else {
+                    service.create(obs);
+                    inserted.incrementAndGet();
+                }
+            } catch (ServiceFailureException ex) {
+                validator.observationFailed(obs);
+                throw ex;
             }
-            long nonError = locations.size() - error;
-            inserted += nonError;
+            validator.observationWritten(obs);
+            result = WRITTEN;
         }
-        davMap.clear();
-        lastDav = null;
-        lastDatastream = null;
-        return inserted;
+        return result;
     }
 
-    private Set<DataArrayValue.Property> getDefinedProperties(Observation o) {
-        Set<DataArrayValue.Property> value = new HashSet<>();
-        value.add(DataArrayValue.Property.Result);
-        if (o.getPhenomenonTime() != null) {
-            value.add(DataArrayValue.Property.PhenomenonTime);
+    private synchronized WriteBehindWriter getWriter() {
+        if (writer == null) {
+            if (useBatch) {
+                writer = new BatchWriter(service, batchSize, batchAge, inserted, updated, validator, validator::observationWritten);
+            } else if (useDataArrays) {
+                writer = new DataArrayWriter(service, dataArraySize, dataArrayAge, inserted, updated, validator, validator::observationWritten);
+            } else {
+                writer = new DirectWriter(service, COALESCE_BUFFER_SIZE, coalesceWindow, inserted, updated, validator, validator::observationWritten);
+            }
+            writer.start();
         }
-        if (o.getResultTime() != null) {
-            value.add(DataArrayValue.Property.ResultTime);
+        return writer;
+    }
+
+    /**
+     * Sends all buffered Observations, when using DataArrays, batch requests
+     * or a coalesce window.
+     *
+     * @return The total number of inserted Observations.
+     */
+    public int sendDataArray() {
+        WriteBehindWriter currentWriter;
+        synchronized (this) {
+            currentWriter = writer;
         }
-        if (o.getResultQuality() != null) {
-            value.add(DataArrayValue.Property.ResultQuality);
+        if (currentWriter != null) {
+            currentWriter.flush();
         }
-        if (o.getParameters() != null) {
-            value.add(DataArrayValue.Property.Parameters);
+        return inserted.get();
+    }
+
+    /**
+     * Sends all buffered Observations, and stops the sender thread of the
+     * write buffer. A new sender is started when the next Observation is
+     * added.
+     */
+    public void closeWriter() {
+        WriteBehindWriter currentWriter;
+        synchronized (this) {
+            currentWriter = writer;
+            writer = null;
         }
-        if (o.getValidTime() != null) {
-            value.add(DataArrayValue.Property.ValidTime);
+        if (currentWriter != null) {
+            currentWriter.close();
+            coalesced.addAndGet(currentWriter.getCoalesced());
         }
-        return value;
     }
 
     public Iterator<Thing> getAllThings() {
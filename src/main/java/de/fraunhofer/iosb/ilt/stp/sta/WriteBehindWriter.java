@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.stp.ProcessException;
+import de.fraunhofer.iosb.ilt.stp.validator.Validator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers Observations, and writes them in batches from a dedicated sender
+ * thread. The buffer is flushed when it holds maxSize Observations, when the
+ * oldest buffered Observation is maxAge milliseconds old, and when the writer
+ * is closed.
+ *
+ * Each batch is validated as one set before it is written, so validators can
+ * check it with fewer requests than each Observation on its own.
+ *
+ * The buffer holds one Observation per (Multi)Datastream and phenomenonTime.
+ * An Observation replaces a buffered Observation with the same
+ * (Multi)Datastream and phenomenonTime, so that only the newest result of a
+ * recalculated interval is written.
+ *
+ * Adding an Observation never waits for a write, unless the sender falls so
+ * far behind that 10 times maxSize Observations are waiting. The result of
+ * the write is reported through the future returned when adding. The future
+ * of a replaced Observation completes with, and just before, that of the
+ * Observation replacing it.
+ *
+ * Writers send each Observation once. When that fails, its future fails, and
+ * retrying is left to the caller, which can back off.
+ *
+ * The state is guarded by a ReentrantLock instead of the monitor of the
+ * writer, so callers on virtual threads that wait for the sender to catch up
+ * do not pin their carrier thread.
+ *
+ * @author scf
+ */
+public abstract class WriteBehindWriter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+    protected final SensorThingsService service;
+    private final Validator validator;
+    private final Consumer<Observation> writtenListener;
+    private final String name;
+    private final int maxSize;
+    private final long maxAge;
+    private final int maxBuffered;
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when Observations are added, or the writer is closing.
+     */
+    private final Condition added = lock.newCondition();
+    /**
+     * Signalled when Observations are written, or the writer is closing.
+     */
+    private final Condition sent = lock.newCondition();
+    /**
+     * The buffered Observations, by (Multi)Datastream and phenomenonTime.
+     * Guarded by lock.
+     */
+    private Map<String, Pending> buffer = new LinkedHashMap<>();
+    private int bufferedCount = 0;
+    private long oldestMillis = 0;
+    /**
+     * The number of Observations taken from the buffer, but not written yet.
+     * Guarded by lock.
+     */
+    private int sendingCount = 0;
+    /**
+     * The result futures of the Observations that are being written.
+     */
+    private final Map<Observation, Pending> sending = Collections.synchronizedMap(new IdentityHashMap<>());
+    private boolean closing = false;
+    private Thread sender;
+
+    /**
+     * Create a new WriteBehindWriter.
+     *
+     * @param service The service to write to.
+     * @param name The name of the sender thread.
+     * @param maxSize The number of buffered Observations that triggers a
+     * write.
+     * @param maxAge The maximum number of milliseconds an Observation is
+     * buffered.
+     * @param validator The validator that checks each batch before it is
+     * written.
+     * @param writtenListener Called with each Observation that was written,
+     * with its id set if the server returned it.
+     */
+    public WriteBehindWriter(SensorThingsService service, String name, int maxSize, long maxAge, Validator validator, Consumer<Observation> writtenListener) {
+        this.service = service;
+        this.validator = validator;
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.maxBuffered = 10 * maxSize;
+        this.writtenListener = writtenListener;
+    }
+
+    /**
+     * Writes the given Observations to the service, and calls
+     * {@link #written(Observation)} for each Observation that the service
+     * accepted. The others count as failed. Called without holding the lock of
+     * this writer.
+     *
+     * @param batch The Observations to write, in the order they were added.
+     */
+    protected abstract void write(List<Observation> batch);
+
+    /**
+     * @return The number of Observations that were replaced by a newer
+     * Observation before they were written.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Starts the sender thread.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (sender != null) {
+                return;
+            }
+            closing = false;
+            sender = new Thread(this::run, name);
+            sender.setDaemon(true);
+            sender.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an Observation to the buffer.
+     *
+     * @param obs The Observation to add.
+     * @return A future that completes with true when the Observation is
+     * written, or exceptionally when writing it failed.
+     * @throws InterruptedException If interrupted while waiting for the
+     * sender to catch up.
+     * @throws ServiceFailureException If the (Multi)Datastream of the
+     * Observation can not be determined.
+     */
+    public CompletableFuture<Boolean> add(Observation obs) throws InterruptedException, ServiceFailureException {
+        String key = keyFor(obs);
+        lock.lockInterruptibly();
+        try {
+            while (bufferedCount + sendingCount >= maxBuffered && sender != null && !closing) {
+                sent.await();
+            }
+            Pending pending = new Pending(obs);
+            Pending replaced = buffer.put(key, pending);
+            if (replaced != null) {
+                coalesced.incrementAndGet();
+                LOGGER.trace("Replaced unsent Observation for {}.", key);
+                pending.replaced.addAll(replaced.replaced);
+                pending.replaced.add(replaced.result);
+                return pending.result;
+            }
+            if (bufferedCount == 0) {
+                oldestMillis = System.currentTimeMillis();
+                added.signalAll();
+            }
+            bufferedCount++;
+            if (bufferedCount >= maxSize) {
+                added.signalAll();
+            }
+            return pending.result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all buffered Observations on the calling thread.
+     */
+    public void flush() {
+        Batch batch;
+        lock.lock();
+        try {
+            batch = take();
+        } finally {
+            lock.unlock();
+        }
+        send(batch);
+    }
+
+    /**
+     * Writes all buffered Observations, and stops the sender thread.
+     */
+    public void close() {
+        Thread oldSender;
+        lock.lock();
+        try {
+            closing = true;
+            added.signalAll();
+            sent.signalAll();
+            oldSender = sender;
+        } finally {
+            lock.unlock();
+        }
+        if (oldSender != null) {
+            try {
+                oldSender.join();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while waiting for the {} thread.", name);
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.lock();
+        try {
+            sender = null;
+        } finally {
+            lock.unlock();
+        }
+        // Anything added while closing.
+        flush();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Batch batch;
+                lock.lockInterruptibly();
+                try {
+                    while (!closing && !isDue()) {
+                        if (bufferedCount == 0) {
+                            added.await();
+                        } else {
+                            added.await(Math.max(1, oldestMillis + maxAge - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    if (closing && bufferedCount == 0) {
+                        return;
+                    }
+                    batch = take();
+                } finally {
+                    lock.unlock();
+                }
+                send(batch);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.warn("{} interrupted, buffered Observations not written.", name);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isDue() {
+        return bufferedCount >= maxSize
+                || (bufferedCount > 0 && System.currentTimeMillis() - oldestMillis >= maxAge);
+    }
+
+    private static class Pending {
+
+        final Observation obs;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        /**
+         * The results of the Observations this one replaced, oldest first.
+         */
+        final List<CompletableFuture<Boolean>> replaced = new ArrayList<>();
+
+        Pending(Observation obs) {
+            this.obs = obs;
+        }
+
+        /**
+         * Completes the replaced results before the own one, so listeners see
+         * the results in the order the Observations were added.
+         */
+        void complete(boolean written, Throwable failure) {
+            for (CompletableFuture<Boolean> older : replaced) {
+                complete(older, written, failure);
+            }
+            complete(result, written, failure);
+        }
+
+        private static void complete(CompletableFuture<Boolean> future, boolean written, Throwable failure) {
+            if (failure == null) {
+                future.complete(written);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static class Batch {
+
+        final List<Pending> items;
+        final int count;
+
+        Batch(List<Pending> items, int count) {
+            this.items = items;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Takes the current buffer, leaving an empty buffer in its place. Must be
+     * called while holding the lock of this writer.
+     */
+    private Batch take() {
+        Batch batch = new Batch(new ArrayList<>(buffer.values()), bufferedCount);
+        buffer = new LinkedHashMap<>();
+        sendingCount += bufferedCount;
+        bufferedCount = 0;
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        try {
+            if (batch.count > 0) {
+                List<Observation> observations = new ArrayList<>(batch.count);
+                for (Pending pending : batch.items) {
+                    observations.add(pending.obs);
+                    sending.put(pending.obs, pending);
+                }
+                List<Observation> valid = validate(observations);
+                if (!valid.isEmpty()) {
+                    write(valid);
+                }
+            }
+        } finally {
+            failUnwritten(batch);
+            lock.lock();
+            try {
+                sendingCount -= batch.count;
+                sent.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Validates the Observations as one set. The futures of the invalid
+     * Observations complete with false.
+     *
+     * @param observations The Observations to validate.
+     * @return The valid Observations.
+     */
+    private List<Observation> validate(List<Observation> observations) {
+        List<Observation> valid;
+        try {
+            valid = validator.validate(observations);
+        } catch (ProcessException ex) {
+            LOGGER.error("{} failed to validate {} Observations.", name, observations.size(), ex);
+            return Collections.emptyList();
+        }
+        if (valid.size() < observations.size()) {
+            Set<Observation> validSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            validSet.addAll(valid);
+            for (Observation obs : observations) {
+                if (!validSet.contains(obs)) {
+                    Pending pending = sending.remove(obs);
+                    if (pending != null) {
+                        pending.complete(false, null);
+                    }
+                }
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Fails the futures of the Observations in the batch that were not
+     * reported as written.
+     */
+    private void failUnwritten(Batch batch) {
+        int failed = 0;
+        for (Pending pending : batch.items) {
+            if (sending.remove(pending.obs) != null) {
+                validator.observationFailed(pending.obs);
+                pending.complete(false, new ServiceFailureException(name + " failed to write Observation for " + pending.obs.getPhenomenonTime()));
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            LOGGER.debug("{} failed to write {} of {} Observations.", name, failed, batch.count);
+        }
+    }
+
+    /**
+     * @param obs The Observation to get the (Multi)Datastream of.
+     * @return The (Multi)Datastream of the Observation.
+     * @throws ServiceFailureException If the (Multi)Datastream can not be
+     * loaded.
+     */
+    protected static Entity<?> getTarget(Observation obs) throws ServiceFailureException {
+        Entity<?> target = obs.getDatastream();
+        if (target == null) {
+            target = obs.getMultiDatastream();
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Observation must have a (Multi)Datastream.");
+        }
+        return target;
+    }
+
+    /**
+     * @param target The (Multi)Datastream.
+     * @return A key identifying the (Multi)Datastream.
+     */
+    protected static String keyFor(Entity<?> target) {
+        return target.getType() + "(" + target.getId().getUrl() + ")";
+    }
+
+    /**
+     * @param obs The Observation.
+     * @return A key identifying the (Multi)Datastream and phenomenonTime of
+     * the Observation.
+     * @throws ServiceFailureException If the (Multi)Datastream can not be
+     * loaded.
+     */
+    static String keyFor(Observation obs) throws ServiceFailureException {
+        return keyFor(getTarget(obs)) + " " + obs.getPhenomenonTime();
+    }
+
+    /**
+     * Parses the id from the location of a created entity, and passes the
+     * Observation to the written listener.
+     *
+     * @param obs The Observation that was created.
+     * @param location The location returned by the server, or null.
+     */
+    protected void created(Observation obs, String location) {
+        if (location != null) {
+            int open = location.lastIndexOf('(');
+            int close = location.lastIndexOf(')');
+            if (open >= 0 && close > open) {
+                obs.setId(Id.tryToParse(location.substring(open + 1, close)));
+            }
+        }
+        written(obs);
+    }
+
+    /**
+     * Fails the future of an Observation that could not be written.
+     *
+     * @param obs The Observation that was not written.
+     * @param cause The reason the write failed.
+     */
+    protected void failed(Observation obs, Throwable cause) {
+        Pending pending = sending.remove(obs);
+        if (pending != null) {
+            validator.observationFailed(obs);
+            pending.complete(false, cause);
+        }
+    }
+
+    /**
+     * Passes the Observation to the written listener, and completes its
+     * future.
+     *
+     * @param obs The Observation that was written.
+     */
+    protected void written(Observation obs) {
+        writtenListener.accept(obs);
+        Pending pending = sending.remove(obs);
+        if (pending != null) {
+            pending.complete(true, null);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker that opens after a number of consecutive failures. While
+ * open, callers of {@link #awaitClosed()} are held back. After the pause, work
+ * resumes; a single success closes the breaker, a single failure opens it
+ * again.
+ *
+ * @author scf
+ */
+public class CircuitBreaker {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final int threshold;
+    private final long pauseMillis;
+
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+
+    /**
+     * Create a new CircuitBreaker.
+     *
+     * @param name The name to use in log messages.
+     * @param threshold The number of consecutive failures after which the
+     * breaker opens. 0 disables the breaker.
+     * @param pauseMillis The number of milliseconds the breaker stays open.
+     */
+    public CircuitBreaker(String name, int threshold, long pauseMillis) {
+        this.name = name;
+        this.threshold = threshold;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public synchronized void success() {
+        if (consecutiveFailures >= threshold && threshold > 0) {
+            LOGGER.info("Circuit breaker for {} closed.", name);
+        }
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void failure() {
+        consecutiveFailures++;
+        long now = System.currentTimeMillis();
+        if (threshold > 0 && consecutiveFailures >= threshold && openUntil <= now) {
+            LOGGER.warn("Circuit breaker for {} opened after {} consecutive failures, pausing for {}ms.", name, consecutiveFailures, pauseMillis);
+            openUntil = now + pauseMillis;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Blocks until the breaker is no longer open.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void awaitClosed() throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = openUntil - System.currentTimeMillis();
+            }
+            if (wait <= 0) {
+                return;
+            }
+            Thread.sleep(wait);
+        }
+    }
+
+}
@@ -17,13 +17,23 @@
  */
 package de.fraunhofer.iosb.ilt.stp.utils;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Merges several input queues into one output queue, taking items from the
+ * input queues in a round-robin fashion. Input queues are created by the
+ * MergeQueue, so that adding an item to an input queue wakes up the merging
+ * thread. Items are moved to the output queue with a blocking put, so no items
+ * are dropped when the output queue is full. When items are waiting, the
+ * merging thread moves up to {@link #MAX_BATCH} items from each input queue per
+ * turn.
  *
  * @author scf
  * @param <T> The type of object on the queues.
@@ -34,21 +44,75 @@ public class MergeQueue<T> {
      * The logger for this class.
      */
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(MergeQueue.class);
+    /**
+     * The maximum number of items taken from one input queue per turn.
+     */
+    public static final int MAX_BATCH = 64;
 
     private final List<BlockingQueue<T>> queues = new CopyOnWriteArrayList<>();
     private final BlockingQueue<T> outputQueue;
-    private boolean running = false;
+    /**
+     * One permit for each item in all input queues.
+     */
+    private final Semaphore available = new Semaphore(0);
+    /**
+     * Notified each time items are moved to the output queue, if a thread is
+     * waiting for a queue to empty.
+     */
+    private final Object moved = new Object();
+    /**
+     * The number of threads waiting on moved. Only changed while holding the
+     * lock on moved.
+     */
+    private volatile int waiting = 0;
+    /**
+     * The items being moved, only used by the merging thread.
+     */
+    private final List<T> batch = new ArrayList<>(MAX_BATCH);
+    /**
+     * The input queue an item is being moved from, or null.
+     */
+    private volatile BlockingQueue<T> moving;
+    private int nextQueue = 0;
+    private volatile boolean running = false;
     private Thread loopThread;
 
     public MergeQueue(BlockingQueue<T> outputQueue) {
         this.outputQueue = outputQueue;
     }
 
-    public void addQueue(BlockingQueue<T> queue) {
+    /**
+     * Creates a new input queue with the given capacity, and adds it to the
+     * queues to merge.
+     *
+     * @param capacity The capacity of the new queue.
+     * @return The new input queue.
+     */
+    public BlockingQueue<T> createQueue(int capacity) {
+        BlockingQueue<T> queue = new SignallingQueue<>(capacity, available);
         queues.add(queue);
+        return queue;
     }
 
-    public void removeQueue(BlockingQueue<T> queue) {
+    /**
+     * Removes the given queue from the queues to merge. Items still on the
+     * queue are moved to the output queue before this method returns.
+     *
+     * @param queue The queue to remove.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for the queue to empty.
+     */
+    public void removeQueue(BlockingQueue<T> queue) throws InterruptedException {
+        synchronized (moved) {
+            waiting++;
+            try {
+                while (running && (!queue.isEmpty() || moving == queue)) {
+                    moved.wait();
+                }
+            } finally {
+                waiting--;
+            }
+        }
         queues.remove(queue);
     }
 
@@ -57,30 +121,58 @@ public class MergeQueue<T> {
     }
 
     private void checkLoop() {
-        while (running) {
-            checkQueues();
+        try {
+            while (running) {
+                available.acquire();
+                // Each permit belongs to an item that is already on a queue.
+                moveItems(1 + available.drainPermits());
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.debug("Merge loop interrupted.");
+            Thread.currentThread().interrupt();
         }
         loopThread = null;
     }
 
-    private void checkQueues() {
-        boolean allEmpty = true;
-        for (BlockingQueue<T> queue : queues) {
-            if (queue.isEmpty()) {
-                continue;
+    /**
+     * Moves the given number of items from the input queues to the output
+     * queue, taking at most MAX_BATCH items from a queue before going to the
+     * next. There must be a permit for each item.
+     *
+     * @param permits The number of items to move.
+     */
+    private void moveItems(int permits) throws InterruptedException {
+        int remaining = permits;
+        int emptyQueues = 0;
+        while (remaining > 0) {
+            int count = queues.size();
+            if (count == 0 || emptyQueues >= count) {
+                LOGGER.error("{} permits without item, this should not happen.", remaining);
+                return;
             }
-            allEmpty = false;
-            try {
-                outputQueue.offer(queue.take(), 1, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                LOGGER.warn("Rude wakeup!", ex);
+            nextQueue = (nextQueue + 1) % count;
+            BlockingQueue<T> queue = queues.get(nextQueue);
+            moving = queue;
+            int taken = queue.drainTo(batch, Math.min(remaining, MAX_BATCH));
+            if (taken == 0) {
+                moving = null;
+                emptyQueues++;
+                continue;
             }
-        }
-        if (allEmpty) {
+            emptyQueues = 0;
+            remaining -= taken;
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                LOGGER.warn("Rude wakeup!", ex);
+                for (T item : batch) {
+                    outputQueue.put(item);
+                }
+            } finally {
+                batch.clear();
+                moving = null;
+                if (waiting > 0) {
+                    synchronized (moved) {
+                        moved.notifyAll();
+                    }
+                }
             }
         }
     }
@@ -91,15 +183,63 @@ public class MergeQueue<T> {
             return;
         }
         running = true;
-        loopThread = new Thread(this::checkLoop);
+        loopThread = new Thread(this::checkLoop, "MergeQueue");
         loopThread.start();
     }
 
     public synchronized void stop() {
         running = false;
+        if (loopThread != null) {
+            loopThread.interrupt();
+        }
+        synchronized (moved) {
+            moved.notifyAll();
+        }
     }
 
     public boolean isRunning() {
         return (loopThread != null);
     }
+
+    /**
+     * A queue that releases a permit on the given semaphore for each item that
+     * is added. Only the merging thread takes items from the queue.
+     *
+     * @param <T> The type of object on the queue.
+     */
+    private static class SignallingQueue<T> extends ArrayBlockingQueue<T> {
+
+        private static final long serialVersionUID = 1L;
+        private final transient Semaphore available;
+
+        public SignallingQueue(int capacity, Semaphore available) {
+            super(capacity);
+            this.available = available;
+        }
+
+        @Override
+        public boolean offer(T e) {
+            if (super.offer(e)) {
+                available.release();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+            if (super.offer(e, timeout, unit)) {
+                available.release();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void put(T e) throws InterruptedException {
+            super.put(e);
+            available.release();
+        }
+
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.utils;
+
+import de.fraunhofer.iosb.ilt.stp.ProcessorHelper;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a shared pool of threads, with one serial lane per key. Tasks
+ * with the same key are executed one after the other, in the order they were
+ * submitted. Tasks with different keys run in parallel.
+ *
+ * A task that is submitted while an equal task (same key and same task id) is
+ * still waiting in its lane is dropped, since it would do the same work.
+ *
+ * The number of tasks waiting in all lanes is bounded; submit blocks when the
+ * bound is reached.
+ *
+ * @author scf
+ * @param <K> The type of the lane keys.
+ */
+public class SerialLaneExecutor<K> {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialLaneExecutor.class);
+
+    private final ExecutorService pool;
+    private final Semaphore capacity;
+    private final int maxPending;
+    private final Map<K, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new SerialLaneExecutor.
+     *
+     * @param threadCount The number of threads in the shared pool.
+     * @param maxPending The maximum number of tasks waiting in all lanes.
+     * @param name The name to use for the threads.
+     */
+    public SerialLaneExecutor(int threadCount, int maxPending, String name) {
+        this(ProcessorHelper.createExecutor(threadCount, name, false), maxPending);
+    }
+
+    /**
+     * Create a new SerialLaneExecutor that runs its lanes on the given pool.
+     *
+     * @param pool The pool to run the lanes on. It is shut down when this
+     * executor is shut down.
+     * @param maxPending The maximum number of tasks waiting in all lanes.
+     */
+    public SerialLaneExecutor(ExecutorService pool, int maxPending) {
+        this.pool = pool;
+        this.maxPending = maxPending;
+        this.capacity = new Semaphore(maxPending);
+    }
+
+    /**
+     * Submit a task to the lane with the given key.
+     *
+     * @param key The key of the lane to run the task in.
+     * @param taskId The identity of the task, used to drop duplicates.
+     * @param task The task to run.
+     * @return false if an equal task was already waiting, and the given task
+     * was dropped.
+     * @throws InterruptedException If interrupted while waiting for space.
+     * @throws RejectedExecutionException If the pool is shut down. The tasks
+     * waiting in the lane are dropped.
+     */
+    public boolean submit(K key, Object taskId, Runnable task) throws InterruptedException {
+        capacity.acquire();
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(key, k -> new Lane(k));
+            boolean schedule;
+            synchronized (lane) {
+                if (lane.removed) {
+                    // The lane finished and was removed just now, get a fresh one.
+                    continue;
+                }
+                if (!lane.pendingIds.add(taskId)) {
+                    capacity.release();
+                    return false;
+                }
+                lane.tasks.add(new LaneTask(taskId, task));
+                schedule = !lane.scheduled;
+                lane.scheduled = true;
+            }
+            if (schedule) {
+                lane.execute();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of tasks that are waiting or running.
+     */
+    public int getPendingCount() {
+        return maxPending - capacity.availablePermits();
+    }
+
+    /**
+     * Stops accepting tasks, and waits for the running and waiting tasks to
+     * finish.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        long endMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            while (getPendingCount() > 0 && System.currentTimeMillis() < endMillis) {
+                Thread.sleep(100);
+            }
+            pool.shutdownNow();
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.debug("Lane pool did not terminate in time");
+            }
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class LaneTask {
+
+        final Object taskId;
+        final Runnable task;
+
+        public LaneTask(Object taskId, Runnable task) {
+            this.taskId = taskId;
+            this.task = task;
+        }
+
+    }
+
+    /**
+     * The tasks for one key. A lane is on the pool at most once; it runs one
+     * task and, if more tasks are waiting, puts itself back on the pool, so
+     * that a busy lane does not starve the others.
+     */
+    private class Lane implements Runnable {
+
+        private final K key;
+        private final Queue<LaneTask> tasks = new ArrayDeque<>();
+        private final Set<Object> pendingIds = new HashSet<>();
+        private boolean scheduled = false;
+        private boolean removed = false;
+
+        public Lane(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            LaneTask next;
+            synchronized (this) {
+                next = tasks.poll();
+                if (next == null) {
+                    scheduled = false;
+                    return;
+                }
+                // From here on, an equal task is new work again.
+                pendingIds.remove(next.taskId);
+            }
+            try {
+                next.task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Exception while executing task for lane {}", key, ex);
+            } finally {
+                // Also after an Error, or the lane would be stuck.
+                capacity.release();
+                rescheduleOrRemove();
+            }
+        }
+
+        private void rescheduleOrRemove() {
+            boolean more;
+            synchronized (this) {
+                more = !tasks.isEmpty();
+                scheduled = more;
+                if (!more) {
+                    removed = true;
+                    lanes.remove(key, this);
+                }
+            }
+            if (more) {
+                execute();
+            }
+        }
+
+        /**
+         * Puts this lane on the pool. If the pool rejects it, the waiting
+         * tasks are dropped and their capacity is released.
+         */
+        void execute() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException ex) {
+                int dropped;
+                synchronized (this) {
+                    dropped = tasks.size();
+                    tasks.clear();
+                    pendingIds.clear();
+                    scheduled = false;
+                    removed = true;
+                    lanes.remove(key, this);
+                }
+                capacity.release(dropped);
+                LOGGER.warn("Pool rejected lane {}, dropped {} tasks.", key, dropped);
+                throw ex;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stores values by MQTT topic filter, and finds all values with a filter that
+ * matches a given topic. Filters may contain the single-level wildcard "+"
+ * and the multi-level wildcard "#".
+ *
+ * Matching does not lock, so it is not blocked by changes to the trie.
+ * Changes are serialised among themselves.
+ *
+ * @author scf
+ * @param <T> The type of the values.
+ */
+public class TopicTrie<T> {
+
+    private static final String SEPARATOR = "/";
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    private static class Node<T> {
+
+        final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+        final List<T> values = new CopyOnWriteArrayList<>();
+
+        boolean isEmpty() {
+            return values.isEmpty() && children.isEmpty();
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+    private final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds the value for the given filter.
+     *
+     * @param filter The topic filter.
+     * @param value The value to add.
+     * @return true if this is the first value for the filter.
+     */
+    public synchronized boolean add(String filter, T value) {
+        Node<T> node = root;
+        for (String level : filter.split(SEPARATOR, -1)) {
+            node = node.children.computeIfAbsent(level, l -> new Node<>());
+        }
+        node.values.add(value);
+        return filters.add(filter);
+    }
+
+    /**
+     * Removes all values for the given filter.
+     *
+     * @param filter The topic filter.
+     * @return The removed values, empty if there were none.
+     */
+    public synchronized List<T> remove(String filter) {
+        String[] levels = filter.split(SEPARATOR, -1);
+        List<Node<T>> path = new ArrayList<>(levels.length + 1);
+        Node<T> node = root;
+        path.add(node);
+        for (String level : levels) {
+            node = node.children.get(level);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            path.add(node);
+        }
+        List<T> removed = new ArrayList<>(node.values);
+        node.values.clear();
+        filters.remove(filter);
+        // Prune nodes that are no longer used.
+        for (int i = levels.length; i > 0 && path.get(i).isEmpty(); i--) {
+            path.get(i - 1).children.remove(levels[i - 1], path.get(i));
+        }
+        return removed;
+    }
+
+    /**
+     * Finds all values with a filter that matches the given topic.
+     *
+     * @param topic The topic to match.
+     * @return The values of all matching filters.
+     */
+    public List<T> match(String topic) {
+        List<T> result = new ArrayList<>();
+        String[] levels = topic.split(SEPARATOR, -1);
+        // Topics starting with $ are not matched by wildcards on the first level.
+        match(root, levels, 0, !topic.startsWith("$"), result);
+        return result;
+    }
+
+    private void match(Node<T> node, String[] levels, int depth, boolean wildcards, List<T> result) {
+        if (wildcards) {
+            Node<T> multi = node.children.get(MULTI_LEVEL);
+            if (multi != null) {
+                result.addAll(multi.values);
+            }
+        }
+        if (depth == levels.length) {
+            result.addAll(node.values);
+            return;
+        }
+        Node<T> exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            match(exact, levels, depth + 1, true, result);
+        }
+        if (wildcards) {
+            Node<T> single = node.children.get(SINGLE_LEVEL);
+            if (single != null) {
+                match(single, levels, depth + 1, true, result);
+            }
+        }
+    }
+
+    /**
+     * @return The filters that have values.
+     */
+    public Set<String> getFilters() {
+        return Collections.unmodifiableSet(filters);
+    }
+
+}
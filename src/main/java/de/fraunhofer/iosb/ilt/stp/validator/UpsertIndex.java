@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.validator;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.dao.BaseDao;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the Observations in (Multi)Datastreams, by phenomenonTime, with
+ * the id and a hash of the result of each Observation. Used to decide whether
+ * an Observation has to be created, updated or skipped, without a query for
+ * each Observation.
+ *
+ * For each (Multi)Datastream, the index covers a window of phenomenonTimes.
+ * When an Observation after the window is looked up, the window is moved
+ * forward with one query that loads the next chunk of Observations, dropping
+ * the oldest entries if the index gets too large. Observations before the
+ * window are looked up with a query for the single Observation.
+ *
+ * The index assumes that no one else writes to the indexed (Multi)Datastreams.
+ * Own writes are added with {@link #written(Observation)}.
+ *
+ * @author scf
+ */
+public class UpsertIndex {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpsertIndex.class);
+
+    /**
+     * An indexed Observation.
+     */
+    public static class Entry {
+
+        /**
+         * The id of the Observation, or null if it is not known.
+         */
+        public final Id<?> id;
+        /**
+         * The hash of the result of the Observation, as given by
+         * {@link #hashResult(Object)}.
+         */
+        public final long resultHash;
+
+        public Entry(Id<?> id, long resultHash) {
+            this.id = id;
+            this.resultHash = resultHash;
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+
+        final Instant start;
+        final Instant end;
+
+        Key(TimeObject phenTime) {
+            if (phenTime.isInterval()) {
+                start = phenTime.getAsInterval().getStart();
+                end = phenTime.getAsInterval().getEnd();
+            } else {
+                start = phenTime.getAsDateTime().toInstant();
+                end = start;
+            }
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int result = start.compareTo(o.start);
+            if (result == 0) {
+                result = end.compareTo(o.end);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && compareTo((Key) obj) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return start.hashCode() * 31 + end.hashCode();
+        }
+    }
+
+    /**
+     * The index of one (Multi)Datastream. The index is complete for all
+     * phenomenonTimes starting at or after from, and before to. If complete
+     * is true, there is no upper limit. All fields are guarded by lock. This
+     * is a ReentrantLock and not a monitor, since it is held while loading,
+     * and a virtual thread blocking in a monitor pins its carrier thread.
+     */
+    private static class TargetIndex {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final TreeMap<Key, Entry> entries = new TreeMap<>();
+        Instant from;
+        Instant to;
+        boolean complete = false;
+
+        boolean covers(Instant start) {
+            return from != null && !start.isBefore(from) && (complete || start.isBefore(to));
+        }
+    }
+
+    private final int maxEntries;
+    private final Map<String, TargetIndex> indices = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new UpsertIndex.
+     *
+     * @param maxEntries The maximum number of Observations to keep in the
+     * index for each (Multi)Datastream. This is also the number of
+     * Observations loaded with each query.
+     */
+    public UpsertIndex(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Finds the Observation in the same (Multi)Datastream, with the same
+     * phenomenonTime as the given Observation.
+     *
+     * @param obs The Observation to find the existing Observation for.
+     * @return The entry of the existing Observation, or null if there is none.
+     * @throws ServiceFailureException If loading Observations failed.
+     */
+    public Entry find(Observation obs) throws ServiceFailureException {
+        Entity<?> target = getTarget(obs);
+        Key key = new Key(obs.getPhenomenonTime());
+        TargetIndex index = indices.computeIfAbsent(keyFor(target), k -> new TargetIndex());
+        index.lock.lock();
+        try {
+            if (index.from == null || (!index.complete && !key.start.isBefore(index.to))) {
+                load(target, index, index.from == null ? key.start : index.to);
+            }
+            if (!index.complete && !key.start.isBefore(index.to)) {
+                // Far after the window, start a new window.
+                index.entries.clear();
+                index.from = null;
+                load(target, index, key.start);
+            }
+            if (index.covers(key.start)) {
+                return index.entries.get(key);
+            }
+        } finally {
+            index.lock.unlock();
+        }
+        LOGGER.trace("{} is before the indexed window of {}.", key.start, keyFor(target));
+        Observation first = getDao(target).query()
+                .select("@iot.id", "result")
+                .filter("phenomenonTime eq " + obs.getPhenomenonTime().toString())
+                .first();
+        if (first == null) {
+            return null;
+        }
+        return new Entry(first.getId(), hashResult(first.getResult()));
+    }
+
+    /**
+     * Records that the given Observation was written.
+     *
+     * @param obs The Observation that was written.
+     */
+    public void written(Observation obs) {
+        Entity<?> target;
+        try {
+            target = getTarget(obs);
+        } catch (ServiceFailureException ex) {
+            return;
+        }
+        TargetIndex index = indices.get(keyFor(target));
+        if (index == null) {
+            return;
+        }
+        Key key = new Key(obs.getPhenomenonTime());
+        index.lock.lock();
+        try {
+            if (index.covers(key.start)) {
+                index.entries.put(key, new Entry(obs.getId(), hashResult(obs.getResult())));
+                // A complete index is not loaded again, so own writes must keep it bounded.
+                evict(index);
+            }
+        } finally {
+            index.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that writing the given Observation failed, and the server may or
+     * may not have applied it. The index of its (Multi)Datastream is dropped,
+     * so the next lookup loads it from the server again.
+     *
+     * @param obs The Observation that failed to be written.
+     */
+    public void unknown(Observation obs) {
+        try {
+            indices.remove(keyFor(getTarget(obs)));
+        } catch (ServiceFailureException ex) {
+            LOGGER.debug("Could not find the (Multi)Datastream of a failed Observation.", ex);
+        }
+    }
+
+    /**
+     * @return The number of Observations in the index, over all
+     * (Multi)Datastreams.
+     */
+    public int size() {
+        int size = 0;
+        for (TargetIndex index : indices.values()) {
+            index.lock.lock();
+            try {
+                size += index.entries.size();
+            } finally {
+                index.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Loads the next chunk of Observations, starting at the given time.
+     */
+    private void load(Entity<?> target, TargetIndex index, Instant start) throws ServiceFailureException {
+        EntityList<Observation> list = getDao(target).query()
+                .select("@iot.id", "phenomenonTime", "result")
+                .filter("phenomenonTime ge " + start.toString())
+                .orderBy("phenomenonTime asc")
+                .top(maxEntries)
+                .list();
+        int count = 0;
+        Instant last = start;
+        for (Observation obs : list) {
+            Key key = new Key(obs.getPhenomenonTime());
+            index.entries.put(key, new Entry(obs.getId(), hashResult(obs.getResult())));
+            last = key.start;
+            count++;
+        }
+        if (index.from == null) {
+            index.from = start;
+        }
+        // Entries at the last start time may be incomplete, the next chunk starts there.
+        index.complete = !list.hasNextLink();
+        index.to = last;
+        LOGGER.debug("Loaded {} Observations of {} from {}.", count, keyFor(target), start);
+        evict(index);
+    }
+
+    /**
+     * Removes the oldest entries, until the index is small enough. All
+     * entries with the same start time are removed together, so the index
+     * stays complete for the remaining window.
+     */
+    private void evict(TargetIndex index) {
+        if (index.entries.size() <= maxEntries) {
+            return;
+        }
+        Instant removedStart = null;
+        while (index.entries.size() > maxEntries
+                || (!index.entries.isEmpty() && index.entries.firstKey().start.equals(removedStart))) {
+            removedStart = index.entries.pollFirstEntry().getKey().start;
+        }
+        index.from = index.entries.isEmpty() ? index.to : index.entries.firstKey().start;
+    }
+
+    private static Entity<?> getTarget(Observation obs) throws ServiceFailureException {
+        Datastream ds = obs.getDatastream();
+        if (ds != null) {
+            return ds;
+        }
+        MultiDatastream mds = obs.getMultiDatastream();
+        if (mds != null) {
+            return mds;
+        }
+        throw new IllegalArgumentException("Observation has no Datastream of Multidatastream set!");
+    }
+
+    private static BaseDao<Observation> getDao(Entity<?> target) {
+        if (target instanceof Datastream) {
+            return ((Datastream) target).observations();
+        }
+        return ((MultiDatastream) target).observations();
+    }
+
+    private static String keyFor(Entity<?> target) {
+        return target.getType() + "(" + target.getId().getUrl() + ")";
+    }
+
+    /**
+     * Checks if two results are the same, in the same way as
+     * {@link #hashResult(Object)}: numbers are compared by value, regardless
+     * of their type and scale.
+     *
+     * @param one The first result.
+     * @param two The second result.
+     * @return true if the results are the same.
+     */
+    public static boolean sameResult(Object one, Object two) {
+        return normalise(one).equals(normalise(two));
+    }
+
+    /**
+     * Calculates a hash of the given result, that is the same for results
+     * that are the same number in different representations.
+     *
+     * @param result The result to hash.
+     * @return The hash of the result.
+     */
+    public static long hashResult(Object result) {
+        String normalised = normalise(result);
+        // 64 bit FNV-1a.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalised.length(); i++) {
+            hash ^= normalised.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String normalise(Object result) {
+        if (result == null) {
+            return "null";
+        }
+        if (result instanceof Number) {
+            try {
+                return new BigDecimal(result.toString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException ex) {
+                return result.toString();
+            }
+        }
+        if (result instanceof Collection) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object item : (Collection<?>) result) {
+                sb.append(normalise(item)).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return result.getClass().getSimpleName() + ":" + result.toString();
+    }
+}
@@ -24,6 +24,8 @@ import de.fraunhofer.iosb.ilt.configurable.editor.EditorNull;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.stp.ProcessException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -33,6 +35,48 @@ public interface Validator extends Configurable<SensorThingsService, Object> {
 
     public boolean isValid(Observation obs) throws ProcessException;
 
+    /**
+     * Validates a set of Observations, usually all for the same
+     * (Multi)Datastream. By default each Observation is validated on its own,
+     * validators that can check many Observations with fewer requests
+     * override this.
+     *
+     * @param observations The Observations to validate.
+     * @return The valid Observations, in the given order.
+     * @throws ProcessException If validating failed.
+     */
+    public default List<Observation> validate(List<Observation> observations) throws ProcessException {
+        List<Observation> valid = new ArrayList<>(observations.size());
+        for (Observation obs : observations) {
+            if (isValid(obs)) {
+                valid.add(obs);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Called after an Observation that passed validation was written to the
+     * service, so validators that keep state can update it. The id of the
+     * Observation is null if it is not known.
+     *
+     * @param obs The Observation that was written.
+     */
+    public default void observationWritten(Observation obs) {
+        // Nothing to remember by default.
+    }
+
+    /**
+     * Called after writing an Observation that passed validation failed. The
+     * server may or may not have applied the write, so validators that keep
+     * state should check the server again for it.
+     *
+     * @param obs The Observation that failed to be written.
+     */
+    public default void observationFailed(Observation obs) {
+        // Nothing to forget by default.
+    }
+
     /**
      * Always returns true.
      */
@@ -20,21 +20,37 @@ package de.fraunhofer.iosb.ilt.stp.validator;
 import com.google.gson.JsonElement;
 import de.fraunhofer.iosb.ilt.configurable.ConfigEditor;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorMap;
 import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.dao.BaseDao;
 import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
 import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.stp.ProcessException;
-import java.math.BigDecimal;
-import java.util.Collection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Checks if an Observation with the same phenomenonTime already exists. If it
+ * does, and has a different result, the new Observation can update it.
+ *
+ * With the index enabled, the existing Observations are looked up in an
+ * {@link UpsertIndex}, instead of with a query for each Observation.
  *
  * @author scf
  */
@@ -46,54 +62,25 @@ public class ValidatorByPhenTime implements Validator {
     private static final Logger LOGGER = LoggerFactory.getLogger(ValidatorByPhenTime.class);
     private EditorMap<Map<String, Object>> editor;
     private EditorBoolean editorUpdate;
+    private EditorBoolean editorIndex;
+    private EditorInt editorIndexSize;
 
     private boolean update;
+    private UpsertIndex index;
 
+    /**
+     * Compares results in the same way as the hash of the index, so that the
+     * indexed and the query based checks agree.
+     */
     private boolean resultCompare(Object one, Object two) {
-        if (one.equals(two)) {
-            return true;
-        }
-        try {
-            if (one instanceof Long && two instanceof Integer) {
-                return ((Long) one).equals(Long.valueOf((Integer) two));
-            }
-            if (two instanceof Long && one instanceof Integer) {
-                return ((Long) two).equals(Long.valueOf((Integer) one));
-            }
-            if (one instanceof BigDecimal) {
-                return ((BigDecimal) one).equals(new BigDecimal(two.toString()));
-            }
-            if (two instanceof BigDecimal) {
-                return ((BigDecimal) two).equals(new BigDecimal(one.toString()));
-            }
-            if (one instanceof Collection && two instanceof Collection) {
-                Collection cOne = (Collection) one;
-                Collection cTwo = (Collection) two;
-                Iterator iTwo = cTwo.iterator();
-                for (Object itemOne : cOne) {
-                    if (!iTwo.hasNext()) {
-                        // Collection one is longer than two
-                        return false;
-                    }
-                    if (!resultCompare(itemOne, iTwo.next())) {
-                        return false;
-                    }
-                }
-                if (iTwo.hasNext()) {
-                    // Collection two is longer than one.
-                    return false;
-                }
-                return true;
-            }
-        } catch (NumberFormatException e) {
-            LOGGER.trace("Not both bigdecimal.", e);
-            // not both bigDecimal.
-        }
-        return false;
+        return UpsertIndex.sameResult(one, two);
     }
 
     @Override
     public boolean isValid(Observation obs) throws ProcessException {
+        if (index != null) {
+            return isValidIndexed(obs);
+        }
         try {
             Datastream ds = obs.getDatastream();
             if (ds != null) {
@@ -135,10 +122,201 @@ public class ValidatorByPhenTime implements Validator {
         }
     }
 
+    /**
+     * Validates the Observations of each (Multi)Datastream with one query for
+     * the phenomenonTime range they cover, instead of one query for each
+     * Observation. With the index enabled, the index is used.
+     *
+     * @param observations The Observations to validate.
+     * @return The valid Observations, in the given order.
+     * @throws ProcessException If validating failed.
+     */
+    @Override
+    public List<Observation> validate(List<Observation> observations) throws ProcessException {
+        if (index != null || observations.size() < 2) {
+            List<Observation> valid = new ArrayList<>(observations.size());
+            for (Observation obs : observations) {
+                if (isValid(obs)) {
+                    valid.add(obs);
+                }
+            }
+            return valid;
+        }
+        Map<String, List<Observation>> byTarget = new LinkedHashMap<>();
+        for (Observation obs : observations) {
+            byTarget.computeIfAbsent(keyFor(getTarget(obs)), k -> new ArrayList<>()).add(obs);
+        }
+        Set<Observation> validSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Observation> group : byTarget.values()) {
+            if (group.size() == 1) {
+                if (isValid(group.get(0))) {
+                    validSet.add(group.get(0));
+                }
+                continue;
+            }
+            try {
+                validateRange(group, validSet);
+            } catch (ServiceFailureException ex) {
+                throw new ProcessException("Failed to validate.", ex);
+            }
+        }
+        List<Observation> valid = new ArrayList<>(validSet.size());
+        for (Observation obs : observations) {
+            if (validSet.contains(obs)) {
+                valid.add(obs);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Validates Observations of one (Multi)Datastream, with one query for the
+     * existing Observations in the phenomenonTime range of the group.
+     */
+    private void validateRange(List<Observation> group, Set<Observation> validSet) throws ServiceFailureException, ProcessException {
+        Instant min = null;
+        Instant max = null;
+        for (Observation obs : group) {
+            TimeObject phenTime = obs.getPhenomenonTime();
+            Instant start = startOf(phenTime);
+            Instant end = endOf(phenTime);
+            if (min == null || start.isBefore(min)) {
+                min = start;
+            }
+            if (max == null || end.isAfter(max)) {
+                max = end;
+            }
+        }
+        Entity<?> target = getTarget(group.get(0));
+        BaseDao<Observation> dao = target instanceof Datastream ? ((Datastream) target).observations() : ((MultiDatastream) target).observations();
+        Iterator<Observation> it = dao.query()
+                .select("@iot.id", "phenomenonTime", "result")
+                .filter("phenomenonTime ge " + min.toString() + " and phenomenonTime le " + max.toString())
+                .orderBy("phenomenonTime asc")
+                .top(1000)
+                .list()
+                .fullIterator();
+        Map<String, Observation> existing = new HashMap<>();
+        while (it.hasNext()) {
+            Observation obs = it.next();
+            existing.putIfAbsent(timeKey(obs.getPhenomenonTime()), obs);
+        }
+        LOGGER.debug("Found {} existing Observations for {} new ones between {} and {}.", existing.size(), group.size(), min, max);
+        for (Observation obs : group) {
+            Observation first = existing.get(timeKey(obs.getPhenomenonTime()));
+            if (first == null) {
+                validSet.add(obs);
+            } else if (!resultCompare(obs.getResult(), first.getResult())) {
+                if (update) {
+                    LOGGER.debug("Observation {} with given phenomenonTime {} exists. Result not the same. Updating. {} != {}.", first.getId(), obs.getPhenomenonTime(), obs.getResult(), first.getResult());
+                    obs.setId(first.getId());
+                    validSet.add(obs);
+                } else {
+                    LOGGER.warn("Observation {} with given phenomenonTime {} exists, but result not the same. {} != {}.", first.getId(), obs.getPhenomenonTime(), obs.getResult(), first.getResult());
+                }
+            }
+        }
+    }
+
+    private static Entity<?> getTarget(Observation obs) throws ProcessException {
+        Entity<?> target;
+        try {
+            target = obs.getDatastream();
+            if (target == null) {
+                target = obs.getMultiDatastream();
+            }
+        } catch (ServiceFailureException ex) {
+            throw new ProcessException("Failed to validate.", ex);
+        }
+        if (target == null) {
+            throw new ProcessException("Observation has no Datastream of Multidatastream set!");
+        }
+        return target;
+    }
+
+    private static String keyFor(Entity<?> target) {
+        return target.getType() + "(" + target.getId().getUrl() + ")";
+    }
+
+    private static Instant startOf(TimeObject phenTime) {
+        if (phenTime.isInterval()) {
+            return phenTime.getAsInterval().getStart();
+        }
+        return phenTime.getAsDateTime().toInstant();
+    }
+
+    private static Instant endOf(TimeObject phenTime) {
+        if (phenTime.isInterval()) {
+            return phenTime.getAsInterval().getEnd();
+        }
+        return phenTime.getAsDateTime().toInstant();
+    }
+
+    /**
+     * A key for the phenomenonTime, that does not depend on the time zone or
+     * formatting used.
+     */
+    private static String timeKey(TimeObject phenTime) {
+        return startOf(phenTime) + "/" + endOf(phenTime);
+    }
+
+    private boolean isValidIndexed(Observation obs) throws ProcessException {
+        try {
+            UpsertIndex.Entry existing = index.find(obs);
+            if (existing == null) {
+                return true;
+            }
+            if (existing.resultHash == UpsertIndex.hashResult(obs.getResult())) {
+                return false;
+            }
+            if (!update) {
+                LOGGER.warn("Observation {} with given phenomenonTime {} exists, but result not the same.", existing.id, obs.getPhenomenonTime());
+                return false;
+            }
+            Id<?> id = existing.id;
+            if (id == null) {
+                // Written as part of a DataArray, without known id.
+                id = findExisting(obs).getId();
+            }
+            LOGGER.debug("Observation {} with given phenomenonTime {} exists. Result not the same. Updating.", id, obs.getPhenomenonTime());
+            obs.setId(id);
+            return true;
+        } catch (ServiceFailureException ex) {
+            throw new ProcessException("Failed to validate.", ex);
+        }
+    }
+
+    private Observation findExisting(Observation obs) throws ServiceFailureException, ProcessException {
+        Datastream ds = obs.getDatastream();
+        BaseDao<Observation> dao = ds == null ? obs.getMultiDatastream().observations() : ds.observations();
+        Observation first = dao.query().select("@iot.id").filter("phenomenonTime eq " + obs.getPhenomenonTime().toString()).first();
+        if (first == null) {
+            throw new ProcessException("Indexed Observation not found for phenomenonTime " + obs.getPhenomenonTime());
+        }
+        return first;
+    }
+
+    @Override
+    public void observationWritten(Observation obs) {
+        if (index != null) {
+            index.written(obs);
+        }
+    }
+
+    @Override
+    public void observationFailed(Observation obs) {
+        if (index != null) {
+            index.unknown(obs);
+        }
+    }
+
     @Override
     public void configure(JsonElement config, SensorThingsService context, Object edtCtx, ConfigEditor<?> ce) {
         getConfigEditor(context, edtCtx).setConfig(config);
         update = editorUpdate.getValue();
+        if (editorIndex.getValue()) {
+            index = new UpsertIndex(editorIndexSize.getValue());
+        }
     }
 
     @Override
@@ -148,6 +326,14 @@ public class ValidatorByPhenTime implements Validator {
 
             editorUpdate = new EditorBoolean(false, "Update", "Update results that are different.");
             editor.addOption("update", editorUpdate, false);
+
+            editorIndex = new EditorBoolean(false, "Index",
+                    "Keep a local index of the existing Observations, loaded in chunks, instead of querying for each Observation. "
+                    + "Only use this when no one else writes to the target Datastreams.");
+            editor.addOption("index", editorIndex, true);
+
+            editorIndexSize = new EditorInt(10, 999999, 1, 10000, "Index Size", "The maximum number of Observations to index for each Datastream.");
+            editor.addOption("indexSize", editorIndexSize, true);
         }
         return editor;
     }
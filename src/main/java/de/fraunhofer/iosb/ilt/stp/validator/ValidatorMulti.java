@@ -71,4 +71,30 @@ public class ValidatorMulti implements Validator {
         return true;
     }
 
+    @Override
+    public List<Observation> validate(List<Observation> observations) throws ProcessException {
+        List<Observation> valid = observations;
+        for (Validator validator : validators) {
+            if (valid.isEmpty()) {
+                break;
+            }
+            valid = validator.validate(valid);
+        }
+        return valid;
+    }
+
+    @Override
+    public void observationWritten(Observation obs) {
+        for (Validator validator : validators) {
+            validator.observationWritten(obs);
+        }
+    }
+
+    @Override
+    public void observationFailed(Observation obs) {
+        for (Validator validator : validators) {
+            validator.observationFailed(obs);
+        }
+    }
+
 }
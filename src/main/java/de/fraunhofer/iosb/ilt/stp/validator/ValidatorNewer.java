@@ -19,51 +19,78 @@ package de.fraunhofer.iosb.ilt.stp.validator;
 
 import com.google.gson.JsonElement;
 import de.fraunhofer.iosb.ilt.configurable.ConfigEditor;
-import de.fraunhofer.iosb.ilt.configurable.editor.EditorNull;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorMap;
 import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.sta.model.Datastream;
-import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
 import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
 import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.stp.ProcessException;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Checks if the observation has a phenomenonTime that is later than the latest
  * in the configured datastream.
  *
+ * The latest time of each (Multi)Datastream is cached, and advanced when an
+ * Observation is written. An accepted Observation whose write fails is
+ * accepted again when it is retried. The cache holds a limited number of
+ * (Multi)Datastreams, the least recently used are dropped. A cache miss can
+ * load the latest times of all (Multi)Datastreams of the same Thing with one
+ * query.
+ *
  * @author scf
  */
 public class ValidatorNewer implements Validator {
 
-    private EditorNull editor = new EditorNull("Validator", "Validates the observation against the datastream");
-    private final Map<Id, Instant> datastreamCache = new HashMap<>();
-    private final Map<Id, Instant> multiDatastreamCache = new HashMap<>();
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidatorNewer.class);
+    private static final String EXPAND_LATEST = "($top=1000;$orderby=id asc;$select=id;$expand=Observations($select=phenomenonTime;$orderby=phenomenonTime desc;$top=1))";
+
+    private EditorMap<Map<String, Object>> editor;
+    private EditorInt editorCacheSize;
+    private EditorBoolean editorWarmUp;
+
+    private int cacheSize = 10000;
+    private boolean warmUp = false;
+    /**
+     * The latest phenomenonTime by (Multi)Datastream. Guarded by itself.
+     */
+    private final Map<String, Instant> latestCache = new LinkedHashMap<String, Instant>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Instant> eldest) {
+            return size() > cacheSize;
+        }
+    };
 
     @Override
     public boolean isValid(Observation obs) throws ProcessException {
         try {
-            Instant latest;
-            Datastream ds = obs.getDatastream();
-            if (ds == null) {
-                MultiDatastream mds = obs.getMultiDatastream();
-                if (mds == null) {
+            Entity<?> target = obs.getDatastream();
+            if (target == null) {
+                target = obs.getMultiDatastream();
+                if (target == null) {
                     throw new ProcessException("Observation has no Datastream of Multidatastream set!");
                 }
-                latest = getTimeForMultiDatastream(mds);
-            } else {
-                latest = getTimeForDatastream(ds);
             }
-            TimeObject phenomenonTime = obs.getPhenomenonTime();
-            Instant obsInstant;
-            if (phenomenonTime.isInterval()) {
-                obsInstant = phenomenonTime.getAsInterval().getStart();
-            } else {
-                obsInstant = phenomenonTime.getAsDateTime().toInstant();
+            String key = keyFor(target);
+            Instant obsInstant = startOf(obs.getPhenomenonTime());
+            Instant latest = getCached(key);
+            if (latest == null) {
+                latest = loadLatest(target, key);
             }
             return latest.isBefore(obsInstant);
         } catch (ServiceFailureException ex) {
@@ -71,52 +98,117 @@ public class ValidatorNewer implements Validator {
         }
     }
 
-    private Instant getTimeForDatastream(Datastream ds) throws ServiceFailureException {
-        Id dsId = ds.getId();
-        Instant latest = datastreamCache.get(dsId);
-        if (latest == null) {
-            Observation firstObs = ds.observations().query().select("@iot.id", "phenomenonTime").orderBy("phenomenonTime desc").first();
-            if (firstObs == null) {
-                latest = Instant.MIN;
-            } else {
-                TimeObject phenomenonTime = firstObs.getPhenomenonTime();
-                if (phenomenonTime.isInterval()) {
-                    latest = phenomenonTime.getAsInterval().getStart();
-                } else {
-                    latest = phenomenonTime.getAsDateTime().toInstant();
-                }
+    @Override
+    public void observationWritten(Observation obs) {
+        try {
+            Entity<?> target = obs.getDatastream();
+            if (target == null) {
+                target = obs.getMultiDatastream();
             }
-            datastreamCache.put(dsId, latest);
+            if (target != null) {
+                putIfNewer(keyFor(target), startOf(obs.getPhenomenonTime()));
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.debug("Could not find the (Multi)Datastream of a written Observation.", ex);
         }
-        return latest;
     }
 
-    private Instant getTimeForMultiDatastream(MultiDatastream mds) throws ServiceFailureException {
-        Id dsId = mds.getId();
-        Instant latest = multiDatastreamCache.get(dsId);
-        if (latest == null) {
-            Observation firstObs = mds.observations().query().select("@iot.id", "phenomenonTime").orderBy("phenomenonTime desc").first();
-            if (firstObs == null) {
-                latest = Instant.MIN;
-            } else {
-                TimeObject phenomenonTime = firstObs.getPhenomenonTime();
-                if (phenomenonTime.isInterval()) {
-                    latest = phenomenonTime.getAsInterval().getStart();
-                } else {
-                    latest = phenomenonTime.getAsDateTime().toInstant();
-                }
+    private Instant getCached(String key) {
+        synchronized (latestCache) {
+            return latestCache.get(key);
+        }
+    }
+
+    private void putIfNewer(String key, Instant latest) {
+        synchronized (latestCache) {
+            latestCache.merge(key, latest, (one, two) -> one.isAfter(two) ? one : two);
+        }
+    }
+
+    private Instant loadLatest(Entity<?> target, String key) throws ServiceFailureException {
+        if (warmUp && target.getService() != null) {
+            warmUpThingOf(target);
+            Instant latest = getCached(key);
+            if (latest != null) {
+                return latest;
             }
-            multiDatastreamCache.put(dsId, latest);
         }
+        Observation firstObs;
+        if (target instanceof Datastream) {
+            firstObs = ((Datastream) target).observations().query().select("@iot.id", "phenomenonTime").orderBy("phenomenonTime desc").first();
+        } else {
+            firstObs = ((MultiDatastream) target).observations().query().select("@iot.id", "phenomenonTime").orderBy("phenomenonTime desc").first();
+        }
+        Instant latest = firstObs == null ? Instant.MIN : startOf(firstObs.getPhenomenonTime());
+        putIfNewer(key, latest);
         return latest;
     }
 
+    /**
+     * Loads the latest phenomenonTime of all (Multi)Datastreams of the Thing
+     * of the given (Multi)Datastream, with one query.
+     */
+    private void warmUpThingOf(Entity<?> target) throws ServiceFailureException {
+        String navigation = target instanceof Datastream ? "Datastreams" : "MultiDatastreams";
+        Thing thing = target.getService().things().query()
+                .filter(navigation + "/id eq " + target.getId().getUrl())
+                .select("id")
+                .expand("Datastreams" + EXPAND_LATEST + ",MultiDatastreams" + EXPAND_LATEST)
+                .first();
+        if (thing == null) {
+            return;
+        }
+        int count = 0;
+        for (Iterator<Datastream> it = thing.getDatastreams().fullIterator(); it.hasNext();) {
+            Datastream ds = it.next();
+            putIfNewer(keyFor(ds), latestOf(ds.getObservations()));
+            count++;
+        }
+        for (Iterator<MultiDatastream> it = thing.getMultiDatastreams().fullIterator(); it.hasNext();) {
+            MultiDatastream mds = it.next();
+            putIfNewer(keyFor(mds), latestOf(mds.getObservations()));
+            count++;
+        }
+        LOGGER.debug("Loaded latest times of {} (Multi)Datastreams of Thing {}.", count, thing.getId());
+    }
+
+    private static Instant latestOf(EntityList<Observation> observations) {
+        if (observations == null || observations.isEmpty()) {
+            return Instant.MIN;
+        }
+        return startOf(observations.iterator().next().getPhenomenonTime());
+    }
+
+    private static Instant startOf(TimeObject phenomenonTime) {
+        if (phenomenonTime.isInterval()) {
+            return phenomenonTime.getAsInterval().getStart();
+        }
+        return phenomenonTime.getAsDateTime().toInstant();
+    }
+
+    private static String keyFor(Entity<?> target) {
+        return target.getType() + "(" + target.getId().getUrl() + ")";
+    }
+
     @Override
     public void configure(JsonElement config, SensorThingsService context, Object edtCtx, ConfigEditor<?> ce) {
+        getConfigEditor(context, edtCtx).setConfig(config);
+        cacheSize = editorCacheSize.getValue();
+        warmUp = editorWarmUp.getValue();
     }
 
     @Override
     public ConfigEditor<?> getConfigEditor(SensorThingsService context, Object edtCtx) {
+        if (editor == null) {
+            editor = new EditorMap<>();
+
+            editorCacheSize = new EditorInt(1, 9999999, 1, 10000, "Cache Size", "The maximum number of Datastreams to cache the latest phenomenonTime of.");
+            editor.addOption("cacheSize", editorCacheSize, true);
+
+            editorWarmUp = new EditorBoolean(false, "Warm Up per Thing",
+                    "When a Datastream is not in the cache, load the latest phenomenonTime of all Datastreams of its Thing with one query.");
+            editor.addOption("warmUp", editorWarmUp, true);
+        }
         return editor;
     }
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.aggregation;
+
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the messages per second, on a single thread, of the streaming
+ * phenomenonTime extraction in {@link Utils#parseMessage(byte[])} with the
+ * previous path: decoding the payload to a String and mapping it to a full
+ * Observation. Not a unit test, run it with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... de.fraunhofer.iosb.ilt.stp.aggregation.MessageParseBenchmark [seconds]
+ * </pre>
+ *
+ * @author scf
+ */
+public class MessageParseBenchmark {
+
+    private static final int MESSAGE_COUNT = 1000;
+
+    private MessageParseBenchmark() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        List<byte[]> messages = createMessages();
+        // Warm up both paths.
+        run("warm-up", messages, 1, MessageParseBenchmark::parseStreaming);
+        run("warm-up", messages, 1, MessageParseBenchmark::parseFull);
+        report("Streaming", run("Streaming", messages, seconds, MessageParseBenchmark::parseStreaming));
+        report("Full mapping", run("Full mapping", messages, seconds, MessageParseBenchmark::parseFull));
+    }
+
+    private static Object parseStreaming(byte[] message) throws IOException {
+        return Utils.parseMessage(message).phenomenonTime;
+    }
+
+    private static Object parseFull(byte[] message) throws IOException {
+        String body = new String(message, Utils.UTF8);
+        return ObjectMapperFactory.get().readValue(body, Observation.class).getPhenomenonTime();
+    }
+
+    private interface Parser {
+
+        Object parse(byte[] message) throws IOException;
+    }
+
+    private static double run(String name, List<byte[]> messages, long seconds, Parser parser) throws IOException {
+        long endNanos = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        long count = 0;
+        int nulls = 0;
+        while (System.nanoTime() < endNanos) {
+            for (byte[] message : messages) {
+                if (parser.parse(message) == null) {
+                    nulls++;
+                }
+            }
+            count += messages.size();
+        }
+        if (nulls > 0) {
+            throw new IllegalStateException(name + " returned no phenomenonTime for " + nulls + " messages.");
+        }
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void report(String name, double perSecond) {
+        System.out.println(String.format("%-14s %,12.0f messages/s/core", name, perSecond));
+    }
+
+    /**
+     * Creates messages like the server sends them, with some fields that the
+     * streaming parser has to skip.
+     */
+    private static List<byte[]> createMessages() {
+        List<byte[]> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int minute = i % 60;
+            String json = "{\"@iot.id\":" + (1000 + i) + ","
+                    + "\"@iot.selfLink\":\"http://localhost:8080/FROST-Server/v1.0/Observations(" + (1000 + i) + ")\","
+                    + "\"phenomenonTime\":\"2018-03-01T10:" + (minute < 10 ? "0" : "") + minute + ":00.000Z\","
+                    + "\"resultTime\":null,"
+                    + "\"result\":[" + i + ".5," + (i * 2) + ".25,null],"
+                    + "\"parameters\":{\"resultCount\":" + i + ",\"source\":{\"name\":\"bench\",\"tags\":[1,2,3]}},"
+                    + "\"Datastream@iot.navigationLink\":\"http://localhost:8080/FROST-Server/v1.0/Observations(" + (1000 + i) + ")/Datastream\"}";
+            messages.add(json.getBytes(Utils.UTF8));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Measures the throughput and the hand-off latency of the MergeQueue, against
+ * producers putting directly on one shared queue. Not a unit test, run it with
+ * the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... de.fraunhofer.iosb.ilt.stp.utils.MergeQueueBenchmark [producers] [itemsPerProducer]
+ * </pre>
+ *
+ * @author scf
+ */
+public class MergeQueueBenchmark {
+
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private MergeQueueBenchmark() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int items = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runMerged(producers, items / 10);
+            runDirect(producers, items / 10);
+        }
+        System.out.println("Producers: " + producers + ", items per producer: " + items);
+        report("MergeQueue", runMerged(producers, items));
+        report("Shared queue", runDirect(producers, items));
+    }
+
+    private static Result runMerged(int producers, int items) throws InterruptedException {
+        BlockingQueue<Long> output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        MergeQueue<Long> merger = new MergeQueue<>(output);
+        List<BlockingQueue<Long>> inputs = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            inputs.add(merger.createQueue(QUEUE_CAPACITY));
+        }
+        merger.start();
+        try {
+            return run(inputs, output, items);
+        } finally {
+            merger.stop();
+        }
+    }
+
+    private static Result runDirect(int producers, int items) throws InterruptedException {
+        BlockingQueue<Long> output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        List<BlockingQueue<Long>> inputs = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            inputs.add(output);
+        }
+        return run(inputs, output, items);
+    }
+
+    /**
+     * Each producer puts its creation time in nanoseconds on its input queue,
+     * the consumer records the time each item took to reach the output queue.
+     */
+    private static Result run(List<BlockingQueue<Long>> inputs, BlockingQueue<Long> output, int items) throws InterruptedException {
+        int total = inputs.size() * items;
+        long[] latencies = new long[total];
+        List<Thread> threads = new ArrayList<>();
+        for (BlockingQueue<Long> input : inputs) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < items; i++) {
+                        input.put(System.nanoTime());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < total; i++) {
+            latencies[i] = System.nanoTime() - output.take();
+        }
+        long duration = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Arrays.sort(latencies);
+        return new Result(total, duration, latencies);
+    }
+
+    private static void report(String name, Result result) {
+        System.out.println(String.format("%-12s %,12.0f items/s  latency p50 %,8d ns  p99 %,10d ns  max %,12d ns",
+                name,
+                result.count * 1e9 / result.durationNanos,
+                result.percentile(0.50),
+                result.percentile(0.99),
+                result.latencies[result.latencies.length - 1]));
+    }
+
+    private static class Result {
+
+        final int count;
+        final long durationNanos;
+        final long[] latencies;
+
+        Result(int count, long durationNanos, long[] latencies) {
+            this.count = count;
+            this.durationNanos = durationNanos;
+            this.latencies = latencies;
+        }
+
+        long percentile(double fraction) {
+            return latencies[(int) Math.min(latencies.length - 1, fraction * latencies.length)];
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.stp.validator;
+
+import com.sun.net.httpserver.HttpServer;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+
+/**
+ * Checks that the window of a complete UpsertIndex stays bounded when own
+ * writes are added to it. Serves an empty Observations collection from a
+ * local http server, so the first lookup makes the index complete. Run it
+ * with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... de.fraunhofer.iosb.ilt.stp.validator.UpsertIndexWindowTest
+ * </pre>
+ *
+ * @author scf
+ */
+public class UpsertIndexWindowTest {
+
+    private static final int MAX_ENTRIES = 10;
+    private static final int WRITES = 1000;
+
+    private UpsertIndexWindowTest() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws IOException, URISyntaxException, ServiceFailureException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        byte[] empty = "{\"value\":[]}".getBytes(StandardCharsets.UTF_8);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, empty.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(empty);
+            }
+        });
+        server.start();
+        try {
+            SensorThingsService service = new SensorThingsService(new URL("http://localhost:" + server.getAddress().getPort() + "/v1.0/"));
+            Datastream ds = new Datastream();
+            ds.setId(new IdLong(1L));
+            ds.setService(service);
+
+            UpsertIndex index = new UpsertIndex(MAX_ENTRIES);
+            ZonedDateTime start = ZonedDateTime.parse("2026-01-01T00:00:00Z");
+            check(index.find(createObservation(ds, start, 0)) == null, "Empty server, nothing found.");
+
+            for (int i = 0; i < WRITES; i++) {
+                index.written(createObservation(ds, start.plusMinutes(i), i));
+                check(index.size() <= MAX_ENTRIES, "Index grew to " + index.size() + " entries after " + (i + 1) + " writes.");
+            }
+            Observation last = createObservation(ds, start.plusMinutes(WRITES - 1L), WRITES - 1);
+            UpsertIndex.Entry entry = index.find(last);
+            check(entry != null && entry.resultHash == UpsertIndex.hashResult(WRITES - 1), "The newest write is in the window.");
+            System.out.println("OK: " + index.size() + " entries after " + WRITES + " writes, with a maximum of " + MAX_ENTRIES + ".");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static Observation createObservation(Datastream ds, ZonedDateTime time, int result) {
+        Observation obs = new Observation(result, ds);
+        obs.setPhenomenonTime(new TimeObject(time));
+        return obs;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}